@@ -0,0 +1,78 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+//one chat line from player0, including the tick that delivers it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatBenchmark
+{
+	@Benchmark
+	public boolean partyChat(PluginState state)
+	{
+		state.plugin.getSession(state.sender).partyToggle = true;
+		
+		AsyncPlayerChatEvent event = new AsyncPlayerChatEvent(false, state.sender, "hello party", state.recipients);
+		state.handler.onPlayerChat(event);
+		state.tick();
+		return event.isCancelled();
+	}
+	
+	@Benchmark
+	public boolean globalChat(PluginState state)
+	{
+		state.plugin.getSession(state.sender).partyToggle = false;
+		
+		AsyncPlayerChatEvent event = new AsyncPlayerChatEvent(false, state.sender, "hello world", state.recipients);
+		state.handler.onPlayerChat(event);
+		state.tick();
+		return event.isCancelled();
+	}
+	
+	@Benchmark
+	public long sendPlayerMessage(PluginState state)
+	{
+		state.party.sendPlayerMessage(state.sender, "hello party");
+		state.tick();
+		return StandIns.messages;
+	}
+	
+	@Benchmark
+	public long sendSpyPartyMessage(PluginState state)
+	{
+		state.plugin.sendSpyPartyMessage(state.party, "player0: hello party");
+		state.tick();
+		return StandIns.messages;
+	}
+}
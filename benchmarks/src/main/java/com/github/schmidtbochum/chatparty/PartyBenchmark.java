@@ -0,0 +1,77 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//party lookups and the main thread side of saving
+//loadParty walks through all parties, so with more parties than partyCacheSize every lookup misses the cache
+//the stand-in scheduler runs the storage read inline, a miss includes the read and the cache trim
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartyBenchmark
+{
+	@State(Scope.Thread)
+	public static class Cursor implements ChatPartyPlugin.PartyCallback
+	{
+		int next;
+		Party loaded;
+		
+		public void loaded(Party party)
+		{
+			loaded = party;
+		}
+	}
+	
+	@Benchmark
+	public Party loadParty(PluginState state, Cursor cursor)
+	{
+		cursor.next = (cursor.next + 1) % state.partyCount;
+		state.plugin.loadParty("party" + cursor.next, cursor);
+		return cursor.loaded;
+	}
+	
+	@Benchmark
+	public Party loadOwnParty(PluginState state, Cursor cursor)
+	{
+		state.plugin.loadParty("party0", cursor);
+		return cursor.loaded;
+	}
+	
+	@Benchmark
+	public void saveParty(PluginState state)
+	{
+		state.plugin.saveParty(state.party);
+		state.plugin.savePlayer(state.sender);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//one background save of a changed party and player, including the commit to disk
+//the yaml, binary and sqlite storage start with a copy of all parties of the plugin state, the journal starts empty
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Queue
+	{
+		@Param({"yaml", "journal", "binary", "sqlite"})
+		public String storage;
+		
+		PersistenceQueue persistence;
+		Party party;
+		File folder;
+		
+		@Setup(Level.Trial)
+		public void setUp(PluginState state) throws Exception
+		{
+			folder = new File(state.dataFolder, "persistence-" + storage);
+			folder.mkdirs();
+			
+			File file = new File(folder, "config.yml");
+			YamlConfiguration.loadConfiguration(new File(state.dataFolder, "config.yml")).save(file);
+			
+			PartyStorage partyStorage;
+			if(storage.equals("journal")) 
+			{
+				partyStorage = new JournalStorage(state.plugin, new File(folder, "parties.journal"), new File(folder, "parties.snapshot"), 10000);
+				partyStorage.open();
+			}
+			else if(storage.equals("binary") || storage.equals("sqlite")) 
+			{
+				if(storage.equals("binary")) 
+				{
+					partyStorage = new BinaryStorage(state.plugin, new File(folder, "parties.dat"), new File(folder, "parties.log"), 10000);
+				}
+				else
+				{
+					partyStorage = new SqliteStorage(state.plugin, new File(folder, "chatparty.db"));
+				}
+				partyStorage.open();
+				
+				YamlStorage yamlStorage = new YamlStorage(state.plugin, file);
+				yamlStorage.open();
+				copy(yamlStorage, partyStorage);
+			}
+			else
+			{
+				partyStorage = new YamlStorage(state.plugin, file);
+				partyStorage.open();
+			}
+			persistence = new PersistenceQueue(state.plugin, partyStorage);
+			
+			party = new Party("benchmark", state.plugin);
+			for(String playerId : state.party.getMemberIds())
+			{
+				party.setRole(playerId, state.party.getMemberName(playerId), state.party.getRole(playerId));
+			}
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			persistence.getStorage().close();
+			PluginState.delete(folder);
+		}
+	}
+	
+	//like the migration of the plugin, so the binary snapshot holds the whole state
+	//and the sqlite tables have their full size
+	static void copy(PartyStorage from, PartyStorage to) throws StorageException
+	{
+		for(Party party : from.loadParties())
+		{
+			to.saveParty(party.name, party.getMembers(PartyRole.LEADER), party.getMembers(PartyRole.MEMBER));
+			for(String playerId : party.getMemberIds())
+			{
+				to.savePlayer(playerId, party.name);
+				to.saveName(playerId, party.getMemberName(playerId));
+			}
+		}
+		to.commit();
+	}
+	
+	//alternates one member, so every flush writes a real change
+	@Benchmark
+	public void flush(Queue queue)
+	{
+		if(!queue.party.removeMember("benchmark")) queue.party.setRole("benchmark", "benchmark", PartyRole.MEMBER);
+		
+		queue.persistence.markParty(queue.party);
+		queue.persistence.markPlayer("benchmark", queue.party.isMember("benchmark") ? queue.party.name : null);
+		queue.persistence.flush();
+	}
+}
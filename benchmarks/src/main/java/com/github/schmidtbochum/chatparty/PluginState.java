@@ -0,0 +1,193 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.Server;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+//an enabled plugin on a stand-in server with yaml storage in a temporary data folder
+//player0 leads party0, which holds the first partySize online players; the other parties have offline members
+//the last spyCount online players watch all parties
+@State(Scope.Benchmark)
+public class PluginState
+{
+	@Param({"100", "1000"})
+	public int online;
+	
+	@Param({"10", "100"})
+	public int partySize;
+	
+	@Param({"0", "10"})
+	public int spyCount;
+	
+	@Param({"100", "5000"})
+	public int partyCount;
+	
+	public ChatPartyPlugin plugin;
+	public PlayerEventHandler handler;
+	public List<Player> players;
+	public Set<Player> recipients;
+	public Player sender;
+	public Party party;
+	public File dataFolder;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		dataFolder = File.createTempFile("chatparty", "");
+		dataFolder.delete();
+		dataFolder.mkdirs();
+		
+		players = new ArrayList<Player>();
+		Server server = StandIns.server(players);
+		for(int i = 0; i < online; i++) 
+		{
+			players.add(StandIns.player(server, "player" + i));
+		}
+		recipients = new HashSet<Player>(players);
+		
+		writeConfig(new File(dataFolder, "config.yml"));
+		
+		plugin = new ChatPartyPlugin();
+		InputStream description = ChatPartyPlugin.class.getClassLoader().getResourceAsStream("plugin.yml");
+		try
+		{
+			Method initialize = JavaPlugin.class.getDeclaredMethod("initialize", PluginLoader.class, Server.class, PluginDescriptionFile.class, File.class, File.class, ClassLoader.class);
+			initialize.setAccessible(true);
+			initialize.invoke(plugin, null, server, new PluginDescriptionFile(description), dataFolder, new File(dataFolder, "ChatParty.jar"), ChatPartyPlugin.class.getClassLoader());
+		}
+		finally
+		{
+			description.close();
+		}
+		plugin.onEnable();
+		
+		handler = new PlayerEventHandler(plugin);
+		sender = players.get(0);
+		party = plugin.getPlayerParty(sender);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		plugin.onDisable();
+		delete(dataFolder);
+	}
+	
+	//the tick that drains the dispatcher queues
+	public void tick()
+	{
+		plugin.getDispatcher().run();
+	}
+	
+	private void writeConfig(File file) throws IOException
+	{
+		YamlConfiguration config = new YamlConfiguration();
+		config.set("storage", "yaml");
+		//the stand-ins have fixed uuids, see StandIns.uuid()
+		config.set("playerIds", "uuid");
+		config.set("partyCacheSize", 1000);
+		config.set("audit.enabled", true);
+		config.set("audit.console", false);
+		config.set("dispatcher.enabled", true);
+		config.set("dispatcher.perTickBudget", 1000000);
+		
+		List<String> members = new ArrayList<String>();
+		for(int i = 1; i < Math.min(partySize, online); i++) 
+		{
+			String playerId = id(config, "player" + i);
+			members.add(playerId);
+			config.set("players." + playerId, "party0");
+		}
+		config.set("parties.party0.leaders", list(id(config, "player0")));
+		config.set("parties.party0.members", members);
+		config.set("players." + id(config, "player0"), "party0");
+		
+		for(int p = 1; p < partyCount; p++) 
+		{
+			members = new ArrayList<String>();
+			for(int i = 0; i < 4; i++) 
+			{
+				String playerId = id(config, "member" + p + "_" + i);
+				members.add(playerId);
+				config.set("players." + playerId, "party" + p);
+			}
+			config.set("parties.party" + p + ".leaders", list(id(config, "leader" + p)));
+			config.set("parties.party" + p + ".members", members);
+			config.set("players." + id(config, "leader" + p), "party" + p);
+		}
+		
+		List<String> spies = new ArrayList<String>();
+		for(int i = 0; i < Math.min(spyCount, online); i++) 
+		{
+			spies.add(id(config, "player" + (online - 1 - i)));
+		}
+		config.set("spy", spies);
+		
+		config.save(file);
+	}
+	
+	//player id of a stand-in, its name is stored like the plugin does on join
+	private static String id(YamlConfiguration config, String playerName)
+	{
+		String playerId = StandIns.uuid(playerName).toString();
+		config.set("names." + playerId, playerName);
+		return playerId;
+	}
+	
+	private static List<String> list(String value)
+	{
+		List<String> list = new ArrayList<String>();
+		list.add(value);
+		return list;
+	}
+	
+	static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null) 
+		{
+			for(File child : children) 
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+//in-process stand-ins for the parts of the Bukkit api the plugin touches
+//every call that is not handled returns null, false or 0
+//one-shot tasks run right away on the calling thread, so lookups that go through an async task complete
+//before the call returns; delayed and repeating tasks never run
+public class StandIns
+{
+	//number of chat lines sent to all stand-in players, keeps the sends from being optimized away
+	public static long messages;
+	
+	public static Server server(final List<Player> online)
+	{
+		final Logger logger = Logger.getLogger("ChatPartyBenchmark");
+		final BukkitScheduler scheduler = proxy(BukkitScheduler.class, new Handler()
+		{
+			Object handle(String method, Object[] args)
+			{
+				if(method.equals("runTask") || method.equals("runTaskAsynchronously")) 
+				{
+					((Runnable) args[1]).run();
+					return null;
+				}
+				return UNHANDLED;
+			}
+		});
+		final PluginManager pluginManager = proxy(PluginManager.class, null);
+		
+		return proxy(Server.class, new Handler()
+		{
+			Object handle(String method, Object[] args)
+			{
+				if(method.equals("getLogger")) return logger;
+				if(method.equals("getScheduler")) return scheduler;
+				if(method.equals("getPluginManager")) return pluginManager;
+				if(method.equals("getOnlinePlayers")) return online.toArray(new Player[online.size()]);
+				if(method.equals("getName")) return "ChatPartyBenchmark";
+				return UNHANDLED;
+			}
+		});
+	}
+	
+	//stable player id for a stand-in name, also used to write the benchmark data
+	public static UUID uuid(String name)
+	{
+		return UUID.nameUUIDFromBytes(name.getBytes());
+	}
+	
+	public static Player player(final Server server, final String name)
+	{
+		final UUID uuid = uuid(name);
+		
+		return proxy(Player.class, new Handler()
+		{
+			Object handle(String method, Object[] args)
+			{
+				if(method.equals("sendMessage")) 
+				{
+					messages += args[0] instanceof String[] ? ((String[]) args[0]).length : 1;
+					return null;
+				}
+				if(method.equals("getName") || method.equals("getDisplayName") || method.equals("toString")) return name;
+				if(method.equals("getUniqueId")) return uuid;
+				if(method.equals("hasPermission") || method.equals("isOnline")) return true;
+				if(method.equals("getServer")) return server;
+				return UNHANDLED;
+			}
+		});
+	}
+	
+	private static final Object UNHANDLED = new Object();
+	
+	private static abstract class Handler
+	{
+		abstract Object handle(String method, Object[] args);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, final Handler handler)
+	{
+		return (T) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				String name = method.getName();
+				if(name.equals("equals")) return proxy == args[0];
+				if(name.equals("hashCode")) return System.identityHashCode(proxy);
+				
+				Object result = handler == null ? UNHANDLED : handler.handle(name, args);
+				return result != UNHANDLED ? result : defaultValue(method.getReturnType());
+			}
+		});
+	}
+	
+	private static Object defaultValue(Class<?> type)
+	{
+		if(!type.isPrimitive() || type == void.class) return null;
+		if(type == boolean.class) return false;
+		if(type == char.class) return (char) 0;
+		if(type == byte.class) return (byte) 0;
+		if(type == short.class) return (short) 0;
+		if(type == int.class) return 0;
+		if(type == long.class) return 0L;
+		if(type == float.class) return 0f;
+		return 0d;
+	}
+}
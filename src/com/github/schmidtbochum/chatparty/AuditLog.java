@@ -0,0 +1,243 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+//writes party chat and party events to daily, size limited files on a background thread
+//producers only touch a lock-free queue; its capacity is bounded by a semaphore and a full
+//queue either drops the record or waits up to a timeout, depending on the overflow policy
+public class AuditLog implements Runnable
+{
+	private static final int BATCH_SIZE = 512;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	
+	private final ChatPartyPlugin plugin;
+	private final File directory;
+	private final long maxFileSize;
+	private final boolean block;
+	private final long blockTimeout;
+	private final boolean console;
+	
+	private final ConcurrentLinkedQueue<Record> queue;
+	private final Semaphore capacity;
+	private final AtomicLong dropped;
+	
+	private volatile boolean running;
+	private Thread thread;
+	
+	//only used by the writer thread
+	private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+	private final StringBuilder line = new StringBuilder();
+	private Writer writer;
+	private String currentDay;
+	private long currentSize;
+	
+	public AuditLog(ChatPartyPlugin plugin, File directory, int queueSize, long maxFileSize, boolean block, long blockTimeout, boolean console)
+	{
+		this.plugin = plugin;
+		this.directory = directory;
+		this.maxFileSize = maxFileSize;
+		this.block = block;
+		this.blockTimeout = blockTimeout;
+		this.console = console;
+		
+		queue = new ConcurrentLinkedQueue<Record>();
+		capacity = new Semaphore(queueSize);
+		dropped = new AtomicLong();
+	}
+	
+	public void start()
+	{
+		running = true;
+		thread = new Thread(this, "ChatParty audit log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	//stops the writer and writes everything that is still queued
+	public void stop()
+	{
+		running = false;
+		if(thread == null) return;
+		
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join(5000L);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+	
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+	
+	public void log(String message)
+	{
+		if(!running) 
+		{
+			plugin.getLogger().info(message);
+			return;
+		}
+		
+		boolean acquired;
+		if(block)
+		{
+			try
+			{
+				acquired = capacity.tryAcquire(blockTimeout, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				acquired = false;
+			}
+		}
+		else
+		{
+			acquired = capacity.tryAcquire();
+		}
+		
+		if(!acquired)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(new Record(System.currentTimeMillis(), message));
+	}
+	
+	public void run()
+	{
+		long reportedDropped = 0;
+		
+		while(running || !queue.isEmpty())
+		{
+			int written = 0;
+			try
+			{
+				Record record;
+				while(written < BATCH_SIZE && (record = queue.poll()) != null)
+				{
+					capacity.release();
+					write(record);
+					written++;
+				}
+				if(writer != null && written > 0) writer.flush();
+			}
+			catch(IOException e)
+			{
+				plugin.getLogger().log(Level.SEVERE, "Could not write the audit log", e);
+				closeWriter();
+			}
+			
+			long droppedNow = dropped.get();
+			if(droppedNow != reportedDropped)
+			{
+				plugin.getLogger().warning("The audit log queue is full, " + (droppedNow - reportedDropped) + " records were dropped.");
+				reportedDropped = droppedNow;
+			}
+			
+			if(written == 0 && running) LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+		closeWriter();
+	}
+	
+	private void write(Record record) throws IOException
+	{
+		Date date = new Date(record.time);
+		String day = dayFormat.format(date);
+		
+		line.setLength(0);
+		line.append(timeFormat.format(date)).append(' ').append(record.message);
+		
+		if(console) plugin.getLogger().info(record.message);
+		
+		if(writer == null || !day.equals(currentDay) || currentSize >= maxFileSize) 
+		{
+			openWriter(day);
+		}
+		line.append('\n');
+		writer.write(line.toString());
+		currentSize += line.length();
+	}
+	
+	//opens the first file of the day that still has room, e.g. audit-2013-02-01.log, audit-2013-02-01.1.log, ...
+	private void openWriter(String day) throws IOException
+	{
+		closeWriter();
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+		
+		File file = new File(directory, "audit-" + day + ".log");
+		for(int index = 1; file.length() >= maxFileSize; index++)
+		{
+			file = new File(directory, "audit-" + day + "." + index + ".log");
+		}
+		
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		currentDay = day;
+		currentSize = file.length();
+	}
+	
+	private void closeWriter()
+	{
+		if(writer == null) return;
+		try
+		{
+			writer.close();
+		}
+		catch(IOException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not close the audit log", e);
+		}
+		writer = null;
+	}
+	
+	private static class Record
+	{
+		final long time;
+		final String message;
+		
+		Record(long time, String message)
+		{
+			this.time = time;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,646 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+//keeps all data in memory, stored as a compact binary snapshot (parties.dat) and an append log
+//the snapshot is read into the heap in one go on startup and the log is replayed on top of it.
+//Every distinct string of the snapshot is stored once in a string table and referenced by index,
+//so loading creates one String per distinct value.
+//  header:  magic, version
+//  strings: count, then short length + UTF-8 bytes each
+//  names:   count, then player id, name
+//  parties: count, then name, leader count, leaders, member count, members
+//  players: count, then player id, party name
+//  spies:   count, then player id, target count, targets
+//all references are int indexes into the string table
+//A commit appends one record per change to the log and fsyncs it once (group commit); once the log
+//holds compactAfter records the next commit writes a new snapshot through SnapshotFile and empties
+//the log. A record holds the whole new value of its key, so replaying a log over a newer snapshot
+//after a crash during compaction is harmless.
+//  record: payload length, crc32 of the payload, then type and key (and value, lists) as writeUTF strings
+//a torn record at the end is cut off before new records are appended, damaged records are skipped
+//up to the next one with a valid checksum. The state is guarded by the instance lock, the files by
+//writeLock: a commit only takes the records (and the snapshot) under the instance lock, so loads
+//never wait for the disk.
+public class BinaryStorage implements PartyStorage
+{
+	private static final int MAGIC = 0x43505354;
+	private static final short VERSION = 1;
+	//a longer record is damage and not data
+	private static final int MAX_RECORD = 1 << 20;
+	
+	//record types
+	private static final byte PARTY = 'P';
+	private static final byte DISBAND = 'D';
+	private static final byte PLAYER = 'J';
+	private static final byte UNSET_PLAYER = 'U';
+	private static final byte NAME = 'N';
+	private static final byte SPY = 'S';
+	private static final byte UNSET_SPY = 'X';
+	
+	private final ChatPartyPlugin plugin;
+	private final File file;
+	private final File logFile;
+	private final int compactAfter;
+	private final Object writeLock = new Object();
+	
+	private final LinkedHashMap<String, PartyRecord> parties;
+	private final HashMap<String, String> players;
+	//player id -> last seen name and lower case name -> player id
+	private final HashMap<String, String> names;
+	private final HashMap<String, String> ids;
+	private final LinkedHashMap<String, List<String>> spies;
+	
+	private final ByteArrayOutputStream pending;
+	//encodes one record at a time
+	private final ByteArrayOutputStream payload;
+	private final DataOutputStream payloadOut;
+	private FileOutputStream log;
+	//records in the log and in pending, a commit compacts once there are compactAfter
+	private int logRecords;
+	//the first commit writes the snapshot even if there is nothing to store yet
+	private boolean snapshotMissing;
+	
+	public BinaryStorage(ChatPartyPlugin plugin, File file, File logFile, int compactAfter)
+	{
+		this.plugin = plugin;
+		this.file = file;
+		this.logFile = logFile;
+		this.compactAfter = compactAfter;
+		
+		parties = new LinkedHashMap<String, PartyRecord>();
+		players = new HashMap<String, String>();
+		names = new HashMap<String, String>();
+		ids = new HashMap<String, String>();
+		spies = new LinkedHashMap<String, List<String>>();
+		pending = new ByteArrayOutputStream();
+		payload = new ByteArrayOutputStream();
+		payloadOut = new DataOutputStream(payload);
+	}
+	
+	public synchronized void open() throws StorageException
+	{
+		try
+		{
+			if(SnapshotFile.recover(file)) 
+			{
+				readSnapshot();
+			}
+			else
+			{
+				snapshotMissing = true;
+			}
+			if(logFile.exists()) logRecords = replay();
+			
+			log = new FileOutputStream(logFile, true);
+		}
+		catch(IOException e)
+		{
+			throw new StorageException("Could not read " + file, e);
+		}
+		catch(RuntimeException e)
+		{
+			//a truncated file runs out of bytes, a damaged one has indexes outside the string table
+			throw new StorageException(file + " is damaged", e);
+		}
+	}
+	
+	public void close()
+	{
+		synchronized(writeLock)
+		{
+			if(log == null) return;
+			
+			try
+			{
+				log.close();
+			}
+			catch(IOException e)
+			{
+				plugin.getLogger().warning("Could not close " + logFile + ": " + e.getMessage());
+			}
+			log = null;
+		}
+	}
+	
+	public synchronized List<Party> loadParties()
+	{
+		List<Party> result = new ArrayList<Party>();
+		for(String partyName : parties.keySet())
+		{
+			Party party = loadParty(partyName);
+			if(party != null) result.add(party);
+		}
+		return result;
+	}
+	
+	public synchronized List<String> loadPartyNames()
+	{
+		return new ArrayList<String>(parties.keySet());
+	}
+	
+	public synchronized Party loadParty(String partyName)
+	{
+		PartyRecord record = parties.get(partyName);
+		if(record == null || record.leaders.length == 0) return null;
+		
+		Party party = new Party(partyName, plugin);
+		addMembers(party, record.leaders, PartyRole.LEADER);
+		addMembers(party, record.members, PartyRole.MEMBER);
+		return party;
+	}
+	
+	public synchronized String loadPlayerParty(String playerId)
+	{
+		return players.get(playerId);
+	}
+	
+	public synchronized String loadPlayerId(String playerName)
+	{
+		return ids.get(playerName.toLowerCase());
+	}
+	
+	public synchronized Map<String, List<String>> loadSpies()
+	{
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for(Map.Entry<String, List<String>> spy : spies.entrySet())
+		{
+			result.put(spy.getKey(), new ArrayList<String>(spy.getValue()));
+		}
+		return result;
+	}
+	
+	public synchronized void saveParty(String partyName, List<String> leaders, List<String> members)
+	{
+		PartyRecord party = new PartyRecord(leaders.toArray(new String[leaders.size()]), members.toArray(new String[members.size()]));
+		parties.put(partyName, party);
+		append(PARTY, partyName, null, party.leaders, party.members);
+	}
+	
+	public synchronized void removeParty(String partyName)
+	{
+		if(parties.remove(partyName) != null) append(DISBAND, partyName, null);
+	}
+	
+	public synchronized void savePlayer(String playerId, String partyName)
+	{
+		if(partyName.equals(players.put(playerId, partyName))) return;
+		append(PLAYER, playerId, partyName);
+	}
+	
+	public synchronized void removePlayer(String playerId)
+	{
+		if(players.remove(playerId) != null) append(UNSET_PLAYER, playerId, null);
+	}
+	
+	public synchronized void saveName(String playerId, String playerName)
+	{
+		if(playerName.equals(putName(playerId, playerName))) return;
+		append(NAME, playerId, playerName);
+	}
+	
+	public synchronized void saveSpy(String playerId, List<String> targets)
+	{
+		if(targets.isEmpty())
+		{
+			if(spies.remove(playerId) != null) append(UNSET_SPY, playerId, null);
+			return;
+		}
+		spies.put(playerId, new ArrayList<String>(targets));
+		append(SPY, playerId, null, targets.toArray(new String[targets.size()]));
+	}
+	
+	public void commit() throws StorageException
+	{
+		synchronized(writeLock)
+		{
+			byte[] records;
+			byte[] snapshot = null;
+			int compacted = 0;
+			boolean first;
+			synchronized(this)
+			{
+				first = snapshotMissing;
+				if(pending.size() == 0 && !first) return;
+				
+				if(first || logRecords >= compactAfter) 
+				{
+					//records that arrive while the snapshot is written go to the emptied log
+					snapshot = writeSnapshot();
+					compacted = logRecords;
+					logRecords = 0;
+				}
+				records = pending.toByteArray();
+				pending.reset();
+			}
+			
+			if(records.length > 0) write(records, compacted);
+			if(snapshot == null) return;
+			
+			boolean written = false;
+			try
+			{
+				SnapshotFile.write(file, snapshot);
+				written = true;
+				synchronized(this)
+				{
+					snapshotMissing = false;
+				}
+				log.getChannel().truncate(0);
+			}
+			catch(IOException e)
+			{
+				//the log is still complete, compacting is tried again with the next commit
+				synchronized(this)
+				{
+					logRecords += compacted;
+				}
+				//without a first snapshot the plugin would migrate again on the next start
+				if(first && !written) throw new StorageException("Could not write " + file, e);
+				plugin.getLogger().log(Level.WARNING, "Could not compact " + logFile, e);
+			}
+		}
+	}
+	
+	//appends the records of a commit to the log, under writeLock
+	private void write(byte[] records, int compacted) throws StorageException
+	{
+		long position = -1;
+		try
+		{
+			position = log.getChannel().size();
+			log.write(records);
+			log.getFD().sync();
+		}
+		catch(IOException e)
+		{
+			//the records are written again with the next commit, after a torn part of them is cut off;
+			//if that fails too, the replay skips the torn bytes up to the next record
+			if(position >= 0) truncate(position);
+			synchronized(this)
+			{
+				byte[] later = pending.toByteArray();
+				pending.reset();
+				pending.write(records, 0, records.length);
+				pending.write(later, 0, later.length);
+				logRecords += compacted;
+			}
+			throw new StorageException("Could not write to " + logFile, e);
+		}
+	}
+	
+	private void truncate(long position)
+	{
+		try
+		{
+			log.getChannel().truncate(position);
+		}
+		catch(IOException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not cut " + logFile + " back after a failed write", e);
+		}
+	}
+	
+	private String putName(String playerId, String playerName)
+	{
+		String previous = names.put(playerId, playerName);
+		if(previous != null) ids.remove(previous.toLowerCase());
+		ids.put(playerName.toLowerCase(), playerId);
+		return previous;
+	}
+	
+	private void addMembers(Party party, String[] playerIds, PartyRole role)
+	{
+		for(String playerId : playerIds)
+		{
+			String playerName = names.get(playerId);
+			party.setRole(playerId, playerName != null ? playerName : playerId, role);
+		}
+	}
+	
+	//adds one record to the next commit
+	private void append(byte type, String key, String value, String[]... lists)
+	{
+		try
+		{
+			payload.reset();
+			payloadOut.writeByte(type);
+			payloadOut.writeUTF(key);
+			if(value != null) payloadOut.writeUTF(value);
+			for(String[] list : lists)
+			{
+				payloadOut.writeInt(list.length);
+				for(String string : list)
+				{
+					payloadOut.writeUTF(string);
+				}
+			}
+			payloadOut.flush();
+			
+			DataOutputStream out = new DataOutputStream(pending);
+			out.writeInt(payload.size());
+			out.writeInt(checksum(payload.toByteArray(), 0, payload.size()));
+			payload.writeTo(out);
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			//a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		logRecords++;
+	}
+	
+	private static int checksum(byte[] data, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+	
+	//applies the records of the log and returns their number
+	private int replay() throws IOException
+	{
+		RandomAccessFile access = new RandomAccessFile(logFile, "rw");
+		try
+		{
+			byte[] data = new byte[(int) access.length()];
+			access.readFully(data);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			
+			int records = 0;
+			int position = 0;
+			//end of the last valid record
+			int end = 0;
+			while(position + 8 <= data.length)
+			{
+				int length = buffer.getInt(position);
+				boolean valid = length > 0 && length <= MAX_RECORD && length <= data.length - position - 8 
+						&& buffer.getInt(position + 4) == checksum(data, position + 8, length) 
+						&& apply(data, position + 8, length);
+				if(!valid) 
+				{
+					position++;
+					continue;
+				}
+				
+				if(position > end) plugin.getLogger().warning("Skipped " + (position - end) + " damaged bytes in " + logFile.getName());
+				position += 8 + length;
+				end = position;
+				records++;
+			}
+			if(end < data.length) 
+			{
+				plugin.getLogger().warning("Dropping the incomplete end of " + logFile.getName() + " (" + (data.length - end) + " bytes)");
+				access.setLength(end);
+			}
+			return records;
+		}
+		finally
+		{
+			access.close();
+		}
+	}
+	
+	//false if the record cannot be read, everything is read before anything changes
+	private boolean apply(byte[] data, int offset, int length)
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		try
+		{
+			byte type = in.readByte();
+			String key = in.readUTF();
+			switch(type)
+			{
+			case PARTY:
+				String[] leaders = readStrings(in);
+				String[] members = readStrings(in);
+				parties.put(key, new PartyRecord(leaders, members));
+				return true;
+			case DISBAND:
+				parties.remove(key);
+				return true;
+			case PLAYER:
+				players.put(key, in.readUTF());
+				return true;
+			case UNSET_PLAYER:
+				players.remove(key);
+				return true;
+			case NAME:
+				putName(key, in.readUTF());
+				return true;
+			case SPY:
+				spies.put(key, new ArrayList<String>(Arrays.asList(readStrings(in))));
+				return true;
+			case UNSET_SPY:
+				spies.remove(key);
+				return true;
+			default:
+				return false;
+			}
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+	
+	private static String[] readStrings(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if(count < 0 || count > MAX_RECORD) throw new IOException("Invalid list length " + count);
+		
+		String[] strings = new String[count];
+		for(int i = 0; i < count; i++)
+		{
+			strings[i] = in.readUTF();
+		}
+		return strings;
+	}
+	
+	private void readSnapshot() throws IOException
+	{
+		//a heap buffer and not a mapping, so the file is not held open until the buffer is collected
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+			read(buffer);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	private void read(ByteBuffer buffer) throws IOException
+	{
+		if(buffer.getInt() != MAGIC) throw new IOException(file + " is not a ChatParty snapshot");
+		short version = buffer.getShort();
+		if(version != VERSION) throw new IOException(file + " has the unknown version " + version);
+		
+		String[] strings = StringTable.read(buffer);
+		
+		int count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			String playerId = strings[buffer.getInt()];
+			String playerName = strings[buffer.getInt()];
+			names.put(playerId, playerName);
+			ids.put(playerName.toLowerCase(), playerId);
+		}
+		
+		count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			String partyName = strings[buffer.getInt()];
+			String[] leaders = readList(buffer, strings);
+			String[] members = readList(buffer, strings);
+			parties.put(partyName, new PartyRecord(leaders, members));
+		}
+		
+		count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			String playerId = strings[buffer.getInt()];
+			players.put(playerId, strings[buffer.getInt()]);
+		}
+		
+		count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			String playerId = strings[buffer.getInt()];
+			spies.put(playerId, new ArrayList<String>(Arrays.asList(readList(buffer, strings))));
+		}
+	}
+	
+	private static String[] readList(ByteBuffer buffer, String[] strings)
+	{
+		String[] list = new String[buffer.getInt()];
+		for(int i = 0; i < list.length; i++)
+		{
+			list[i] = strings[buffer.getInt()];
+		}
+		return list;
+	}
+	
+	private byte[] writeSnapshot()
+	{
+		try
+		{
+			return write();
+		}
+		catch(IOException e)
+		{
+			//a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private byte[] write() throws IOException
+	{
+		StringTable table = new StringTable();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+		DataOutputStream out = new DataOutputStream(body);
+		
+		out.writeInt(names.size());
+		for(Map.Entry<String, String> name : names.entrySet())
+		{
+			out.writeInt(table.index(name.getKey()));
+			out.writeInt(table.index(name.getValue()));
+		}
+		
+		out.writeInt(parties.size());
+		for(Map.Entry<String, PartyRecord> party : parties.entrySet())
+		{
+			out.writeInt(table.index(party.getKey()));
+			writeList(out, table, Arrays.asList(party.getValue().leaders));
+			writeList(out, table, Arrays.asList(party.getValue().members));
+		}
+		
+		out.writeInt(players.size());
+		for(Map.Entry<String, String> player : players.entrySet())
+		{
+			out.writeInt(table.index(player.getKey()));
+			out.writeInt(table.index(player.getValue()));
+		}
+		
+		out.writeInt(spies.size());
+		for(Map.Entry<String, List<String>> spy : spies.entrySet())
+		{
+			out.writeInt(table.index(spy.getKey()));
+			writeList(out, table, spy.getValue());
+		}
+		out.flush();
+		
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream(body.size() + table.size() * 24 + 16);
+		DataOutputStream header = new DataOutputStream(snapshot);
+		header.writeInt(MAGIC);
+		header.writeShort(VERSION);
+		table.write(header);
+		header.flush();
+		body.writeTo(snapshot);
+		return snapshot.toByteArray();
+	}
+	
+	private static void writeList(DataOutputStream out, StringTable table, List<String> list) throws IOException
+	{
+		out.writeInt(list.size());
+		for(String string : list)
+		{
+			out.writeInt(table.index(string));
+		}
+	}
+	
+	private static class PartyRecord
+	{
+		final String[] leaders;
+		final String[] members;
+		
+		PartyRecord(String[] leaders, String[] members)
+		{
+			this.leaders = leaders;
+			this.members = members;
+		}
+	}
+}
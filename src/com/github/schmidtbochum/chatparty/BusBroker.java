@@ -0,0 +1,230 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+//minimal relay for TcpMessageBus: every frame a node sends is forwarded unchanged to all other nodes
+//frames are not decoded, so the broker does not depend on the message format. It is meant for small
+//networks and local tests and runs standalone with
+//  java -cp ChatParty.jar com.github.schmidtbochum.chatparty.BusBroker [port]
+//every node has its own send queue and writer thread, so a slow node does not hold up the others;
+//a node whose queue overflows is disconnected and catches up by reconnecting
+public class BusBroker implements Runnable
+{
+	private static final Logger LOGGER = Logger.getLogger("ChatParty bus broker");
+	private static final int QUEUE_SIZE = 1024;
+	
+	private final ServerSocket server;
+	private final CopyOnWriteArrayList<Connection> connections;
+	private volatile boolean running;
+	
+	//port 0 picks a free port, see getPort()
+	public BusBroker(int port) throws IOException
+	{
+		server = new ServerSocket(port);
+		connections = new CopyOnWriteArrayList<Connection>();
+	}
+	
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	public void start()
+	{
+		running = true;
+		Thread thread = new Thread(this, "ChatParty bus broker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop()
+	{
+		running = false;
+		try
+		{
+			server.close();
+		}
+		catch(IOException e)
+		{
+			//already closed
+		}
+		for(Connection connection : connections)
+		{
+			connection.close();
+		}
+	}
+	
+	public void run()
+	{
+		while(running)
+		{
+			try
+			{
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+				
+				Thread thread = new Thread(connection, "ChatParty bus broker " + socket.getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+				
+				Thread writer = new Thread(connection.new Writer(), "ChatParty bus broker writer " + socket.getRemoteSocketAddress());
+				writer.setDaemon(true);
+				writer.start();
+			}
+			catch(IOException e)
+			{
+				if(running) LOGGER.warning("Could not accept a connection: " + e.getMessage());
+			}
+		}
+	}
+	
+	private void forward(Connection source, byte[] frame)
+	{
+		for(Connection connection : connections)
+		{
+			if(connection != source) connection.send(frame);
+		}
+	}
+	
+	private class Connection implements Runnable
+	{
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final LinkedBlockingQueue<byte[]> queue;
+		private volatile boolean closed;
+		
+		Connection(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			queue = new LinkedBlockingQueue<byte[]>(QUEUE_SIZE);
+		}
+		
+		public void run()
+		{
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while(running)
+				{
+					int length = in.readInt();
+					if(length <= 0 || length > BusMessage.MAX_FRAME) throw new IOException("Invalid frame length " + length);
+					
+					byte[] frame = new byte[length];
+					in.readFully(frame);
+					forward(this, frame);
+				}
+			}
+			catch(IOException e)
+			{
+				//the node disconnected
+			}
+			finally
+			{
+				close();
+			}
+		}
+		
+		//called by the reader threads of the other nodes, never blocks
+		void send(byte[] frame)
+		{
+			if(!queue.offer(frame))
+			{
+				LOGGER.warning("Disconnecting " + socket.getRemoteSocketAddress() + ", it does not keep up with the messages");
+				close();
+			}
+		}
+		
+		void close()
+		{
+			closed = true;
+			//wakes the writer up
+			queue.offer(new byte[0]);
+			connections.remove(this);
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				//already closed
+			}
+		}
+		
+		private class Writer implements Runnable
+		{
+			public void run()
+			{
+				try
+				{
+					while(!closed)
+					{
+						byte[] frame = queue.take();
+						if(frame.length == 0) continue;
+						
+						out.writeInt(frame.length);
+						out.write(frame);
+						//frames that queued up meanwhile go out with the same flush
+						while((frame = queue.poll()) != null && frame.length > 0)
+						{
+							out.writeInt(frame.length);
+							out.write(frame);
+						}
+						out.flush();
+					}
+				}
+				catch(InterruptedException e)
+				{
+					//stopped
+				}
+				catch(IOException e)
+				{
+					//the node disconnected
+				}
+				finally
+				{
+					close();
+				}
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		BusBroker broker = new BusBroker(args.length > 0 ? Integer.parseInt(args[0]) : 25590);
+		LOGGER.info("Listening on port " + broker.getPort() + ".");
+		broker.running = true;
+		broker.run();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//one relayed event and the binary batch format used on the wire:
+//  batch:   magic, version, origin node id, sequence, count, messages
+//  message: type, party name, then the fields of the type
+//strings are modified UTF-8 with a two byte length, empty strings stand for null
+public class BusMessage
+{
+	//frames are prefixed with their length, larger ones are rejected
+	public static final int MAX_FRAME = 1 << 20;
+	
+	private static final int MAGIC = 0xC4A7;
+	private static final int VERSION = 1;
+	
+	public enum Type
+	{
+		//player chat: playerName, displayName, text
+		CHAT,
+		//party system message: text
+		SYSTEM,
+		//a player joined or got a new role: playerId, playerName, role
+		ROLE,
+		//a player left or was kicked: playerId, playerName
+		REMOVE
+	}
+	
+	public final Type type;
+	public final String partyName;
+	public final String playerId;
+	public final String playerName;
+	public final String displayName;
+	public final String text;
+	public final PartyRole role;
+	
+	private BusMessage(Type type, String partyName, String playerId, String playerName, String displayName, String text, PartyRole role)
+	{
+		this.type = type;
+		this.partyName = partyName;
+		this.playerId = playerId;
+		this.playerName = playerName;
+		this.displayName = displayName;
+		this.text = text;
+		this.role = role;
+	}
+	
+	public static BusMessage chat(String partyName, String playerName, String displayName, String text)
+	{
+		return new BusMessage(Type.CHAT, partyName, null, playerName, displayName, text, null);
+	}
+	
+	public static BusMessage system(String partyName, String text)
+	{
+		return new BusMessage(Type.SYSTEM, partyName, null, null, null, text, null);
+	}
+	
+	public static BusMessage role(String partyName, String playerId, String playerName, PartyRole role)
+	{
+		return new BusMessage(Type.ROLE, partyName, playerId, playerName, null, null, role);
+	}
+	
+	public static BusMessage remove(String partyName, String playerId, String playerName)
+	{
+		return new BusMessage(Type.REMOVE, partyName, playerId, playerName, null, null, null);
+	}
+	
+	public static byte[] encode(String origin, long sequence, List<BusMessage> messages) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + messages.size() * 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		out.writeShort(MAGIC);
+		out.writeByte(VERSION);
+		out.writeUTF(origin);
+		out.writeLong(sequence);
+		out.writeShort(messages.size());
+		for(BusMessage message : messages)
+		{
+			out.writeByte(message.type.ordinal());
+			writeString(out, message.partyName);
+			switch(message.type)
+			{
+			case CHAT:
+				writeString(out, message.playerName);
+				writeString(out, message.displayName);
+				writeString(out, message.text);
+				break;
+			case SYSTEM:
+				writeString(out, message.text);
+				break;
+			case ROLE:
+				writeString(out, message.playerId);
+				writeString(out, message.playerName);
+				out.writeByte(message.role.ordinal());
+				break;
+			case REMOVE:
+				writeString(out, message.playerId);
+				writeString(out, message.playerName);
+				break;
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	public static Batch decode(byte[] frame) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		
+		if(in.readUnsignedShort() != MAGIC || in.readUnsignedByte() != VERSION) throw new IOException("Unknown frame format");
+		
+		String origin = in.readUTF();
+		long sequence = in.readLong();
+		int count = in.readUnsignedShort();
+		
+		List<BusMessage> messages = new ArrayList<BusMessage>(count);
+		for(int i = 0; i < count; i++)
+		{
+			int type = in.readUnsignedByte();
+			if(type >= Type.values().length) throw new IOException("Unknown message type " + type);
+			
+			String partyName = readString(in);
+			switch(Type.values()[type])
+			{
+			case CHAT:
+				messages.add(chat(partyName, readString(in), readString(in), readString(in)));
+				break;
+			case SYSTEM:
+				messages.add(system(partyName, readString(in)));
+				break;
+			case ROLE:
+				String playerId = readString(in);
+				String playerName = readString(in);
+				int role = in.readUnsignedByte();
+				if(role >= PartyRole.values().length) throw new IOException("Unknown role " + role);
+				messages.add(role(partyName, playerId, playerName, PartyRole.values()[role]));
+				break;
+			case REMOVE:
+				messages.add(remove(partyName, readString(in), readString(in)));
+				break;
+			}
+		}
+		return new Batch(origin, sequence, messages);
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		out.writeUTF(value == null ? "" : value);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException
+	{
+		String value = in.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+	
+	public static class Batch
+	{
+		public final String origin;
+		public final long sequence;
+		public final List<BusMessage> messages;
+		
+		Batch(String origin, long sequence, List<BusMessage> messages)
+		{
+			this.origin = origin;
+			this.sequence = sequence;
+			this.messages = messages;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+//fixed size ring buffer of the last lines sent to a party
+//lines and timestamps live in two arrays allocated once, an append overwrites the oldest slot
+public class ChatHistory
+{
+	private final String[] lines;
+	private final long[] times;
+	private int next;
+	private int size;
+	
+	public ChatHistory(int capacity)
+	{
+		lines = new String[Math.max(0, capacity)];
+		times = new long[lines.length];
+	}
+	
+	public int getCapacity()
+	{
+		return lines.length;
+	}
+	
+	//called from the async chat thread as well
+	public synchronized void add(String line)
+	{
+		if(lines.length == 0) return;
+		
+		lines[next] = line;
+		times[next] = System.currentTimeMillis();
+		next = next + 1 == lines.length ? 0 : next + 1;
+		if(size < lines.length) size++;
+	}
+	
+	public synchronized int size()
+	{
+		return size;
+	}
+	
+	//copies up to lines.length of the last lines and their times into the arrays, oldest first
+	//returns the number of lines copied
+	public synchronized int copy(String[] lineCopy, long[] timeCopy)
+	{
+		int count = Math.min(lineCopy.length, size);
+		
+		int index = next - count;
+		if(index < 0) index += lines.length;
+		for(int i = 0; i < count; i++)
+		{
+			lineCopy[i] = lines[index];
+			timeCopy[i] = times[index];
+			index = index + 1 == lines.length ? 0 : index + 1;
+		}
+		return count;
+	}
+}
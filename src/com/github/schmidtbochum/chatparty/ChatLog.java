@@ -0,0 +1,640 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+//append-only party chat log in fixed size segment files that are written through a memory mapping
+//  record: int length, long time, then party, player and message as short length + UTF-8 bytes
+//a length of 0 ends the segment. A new segment is started on every enable and whenever the active
+//one is full; sealed segments get a small .idx file with their time range and parties, so a search
+//only reads the segments that can match. Segments older than the retention are deleted.
+//The next segment is mapped on an async task once the active one is half full, and a full segment
+//is sealed (synced, unmapped, truncated to its records, indexed) on an async task as well, so the
+//chat thread only swaps the two. Searches map their own read-only view and release it afterwards.
+public class ChatLog
+{
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final ChatPartyPlugin plugin;
+	private final File folder;
+	private final int segmentSize;
+	private final long retention;
+	
+	//ordered by id, the active segment is the last one
+	private final CopyOnWriteArrayList<Segment> segments;
+	private Segment active;
+	//mapped ahead of time, becomes active when the active segment is full
+	private Segment spare;
+	private boolean preparing;
+	//full segments whose seal task has not started yet, close() seals them itself
+	private final List<Segment> sealing;
+	private long lastId;
+	
+	public ChatLog(ChatPartyPlugin plugin, File folder, int segmentSize, long retention)
+	{
+		this.plugin = plugin;
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.retention = retention;
+		
+		segments = new CopyOnWriteArrayList<Segment>();
+		sealing = new ArrayList<Segment>();
+	}
+	
+	public synchronized void open() throws IOException
+	{
+		if(!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create " + folder);
+		
+		List<Segment> existing = new ArrayList<Segment>();
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				String name = file.getName();
+				if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+				
+				try
+				{
+					Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+					lastId = Math.max(lastId, segment.id);
+					if(!readIndex(segment)) 
+					{
+						//the server stopped without sealing the segment
+						scan(segment);
+						if(segment.length == 0) 
+						{
+							//a spare that was never used
+							file.delete();
+							continue;
+						}
+						truncate(segment);
+						writeIndex(segment);
+					}
+					existing.add(segment);
+				}
+				catch(NumberFormatException e)
+				{
+					plugin.getLogger().warning("Ignoring " + file + " in the chat log.");
+				}
+			}
+		}
+		Segment[] sorted = existing.toArray(new Segment[existing.size()]);
+		Arrays.sort(sorted);
+		segments.addAll(Arrays.asList(sorted));
+		
+		expire();
+		active = create(nextId());
+		segments.add(active);
+	}
+	
+	public synchronized void close()
+	{
+		if(active == null) return;
+		
+		Segment last = active;
+		active = null;
+		seal(last);
+		
+		//the scheduler drops the seal tasks that did not run before the plugin was disabled
+		for(Segment segment : sealing) 
+		{
+			seal(segment);
+		}
+		sealing.clear();
+		
+		if(spare != null) 
+		{
+			discard(spare);
+			spare = null;
+		}
+	}
+	
+	//called from the async chat thread as well; a full segment is replaced right here
+	public synchronized void append(String partyName, String playerName, String message)
+	{
+		if(active == null) return;
+		
+		byte[] party = partyName.getBytes(UTF8);
+		byte[] player = playerName.getBytes(UTF8);
+		byte[] text = message.getBytes(UTF8);
+		int textLength = cut(text, Short.MAX_VALUE);
+		int length = 8 + 2 + party.length + 2 + player.length + 2 + textLength;
+		
+		if(active.length + 4 + length + 4 > segmentSize)
+		{
+			if(4 + length + 4 > segmentSize) return;
+			try
+			{
+				next();
+			}
+			catch(IOException e)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not start a new chat log segment", e);
+				return;
+			}
+		}
+		
+		long time = System.currentTimeMillis();
+		MappedByteBuffer buffer = active.buffer;
+		buffer.position(active.length);
+		buffer.putInt(length);
+		buffer.putLong(time);
+		putString(buffer, party, party.length);
+		putString(buffer, player, player.length);
+		putString(buffer, text, textLength);
+		
+		active.length += 4 + length;
+		active.add(time, partyName);
+		
+		if(spare == null && !preparing && active.length > segmentSize / 2) prepare();
+	}
+	
+	//deletes the segments whose newest record is older than the retention
+	//a segment that cannot be deleted yet (a search still maps it on Windows) is tried again next time
+	public synchronized void expire()
+	{
+		long oldest = System.currentTimeMillis() - retention;
+		for(Segment segment : segments)
+		{
+			if(segment == active || segment.buffer != null || segment.maxTime >= oldest) continue;
+			
+			if(!segment.file.delete() && segment.file.exists()) 
+			{
+				plugin.getLogger().warning("Could not delete " + segment.file + ", trying again later");
+				continue;
+			}
+			segments.remove(segment);
+			new File(folder, segment.id + INDEX_SUFFIX).delete();
+		}
+	}
+	
+	//runs on an async task; the cursor of the returned page continues the search
+	public Page search(Query query, long segmentId, int offset, int limit)
+	{
+		Page page = new Page();
+		SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm");
+		
+		for(Segment segment : segments)
+		{
+			if(segment.id < segmentId) continue;
+			
+			int length;
+			synchronized(this)
+			{
+				if(!segment.matches(query)) continue;
+				
+				length = segment.length;
+			}
+			
+			//an own view, also of the active segment, so nothing the search reads is unmapped under it
+			MappedByteBuffer buffer;
+			try
+			{
+				buffer = map(segment.file, FileChannel.MapMode.READ_ONLY, length);
+			}
+			catch(IOException e)
+			{
+				//deleted by the retention meanwhile
+				continue;
+			}
+			
+			try
+			{
+				int position = segment.id == segmentId ? offset : 0;
+				while(position + 4 <= length)
+				{
+					buffer.position(position);
+					int recordLength = buffer.getInt();
+					if(recordLength <= 0) break;
+					
+					long time = buffer.getLong();
+					String party = getString(buffer);
+					String player = getString(buffer);
+					String text = getString(buffer);
+					
+					if(query.matches(time, party, player, text))
+					{
+						if(page.lines.size() == limit)
+						{
+							page.more = true;
+							page.nextSegment = segment.id;
+							page.nextOffset = position;
+							return page;
+						}
+						page.lines.add("[" + format.format(new Date(time)) + "] [" + party + "] " + player + ": " + text);
+					}
+					position += 4 + recordLength;
+				}
+			}
+			finally
+			{
+				unmap(buffer);
+			}
+		}
+		return page;
+	}
+	
+	//the active segment is full: the spare takes over and the full one is sealed in the background
+	private void next() throws IOException
+	{
+		final Segment full = active;
+		if(spare != null) 
+		{
+			active = spare;
+			spare = null;
+		}
+		else
+		{
+			//the spare is not ready yet
+			active = create(nextId());
+		}
+		segments.add(active);
+		sealing.add(full);
+		
+		async(new Runnable() 
+		{
+			public void run() 
+			{
+				if(claim(full)) seal(full);
+				expire();
+			}
+		});
+	}
+	
+	//false if close() has sealed the segment already
+	private synchronized boolean claim(Segment segment)
+	{
+		return sealing.remove(segment);
+	}
+	
+	private void prepare()
+	{
+		preparing = true;
+		final long id = nextId();
+		async(new Runnable() 
+		{
+			public void run() 
+			{
+				Segment segment = null;
+				try
+				{
+					segment = create(id);
+				}
+				catch(IOException e)
+				{
+					plugin.getLogger().log(Level.WARNING, "Could not prepare the next chat log segment", e);
+				}
+				
+				synchronized(ChatLog.this)
+				{
+					preparing = false;
+					if(segment == null) return;
+					
+					//closed meanwhile, or a newer segment was created because this one came too late
+					if(active == null || segment.id < active.id) 
+					{
+						discard(segment);
+						return;
+					}
+					spare = segment;
+				}
+			}
+		});
+	}
+	
+	private long nextId()
+	{
+		lastId = Math.max(System.currentTimeMillis(), lastId + 1);
+		return lastId;
+	}
+	
+	private Segment create(long id) throws IOException
+	{
+		Segment segment = new Segment(id, new File(folder, id + SEGMENT_SUFFIX));
+		segment.buffer = map(segment.file, FileChannel.MapMode.READ_WRITE, segmentSize);
+		return segment;
+	}
+	
+	private void discard(Segment segment)
+	{
+		unmap(segment.buffer);
+		segment.buffer = null;
+		segment.file.delete();
+	}
+	
+	//nothing is appended to the segment anymore
+	private void seal(Segment segment)
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		buffer.force();
+		unmap(buffer);
+		
+		synchronized(this)
+		{
+			segment.buffer = null;
+		}
+		if(segment.length == 0)
+		{
+			segments.remove(segment);
+			segment.file.delete();
+			return;
+		}
+		try
+		{
+			truncate(segment);
+			writeIndex(segment);
+		}
+		catch(IOException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not seal " + segment.file, e);
+		}
+	}
+	
+	//segments are allocated at full size, the unused rest is given back
+	private void truncate(Segment segment) throws IOException
+	{
+		RandomAccessFile access = new RandomAccessFile(segment.file, "rw");
+		try
+		{
+			access.setLength(segment.length);
+		}
+		finally
+		{
+			access.close();
+		}
+	}
+	
+	//runs on the main thread while the plugin is disabled
+	private void async(Runnable task)
+	{
+		try
+		{
+			plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+		}
+		catch(RuntimeException e)
+		{
+			task.run();
+		}
+	}
+	
+	//rebuilds the index of a segment from its records
+	private void scan(Segment segment) throws IOException
+	{
+		MappedByteBuffer buffer = map(segment.file, FileChannel.MapMode.READ_ONLY, segment.file.length());
+		int position = 0;
+		try
+		{
+			while(position + 4 <= buffer.limit())
+			{
+				buffer.position(position);
+				int length = buffer.getInt();
+				if(length <= 0 || position + 4 + length > buffer.limit()) break;
+				
+				long time = buffer.getLong();
+				segment.add(time, getString(buffer));
+				position += 4 + length;
+			}
+		}
+		finally
+		{
+			unmap(buffer);
+		}
+		segment.length = position;
+	}
+	
+	//first line: length, oldest and newest time; then one party per line
+	private void writeIndex(Segment segment) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(folder, segment.id + INDEX_SUFFIX)), UTF8);
+		try
+		{
+			writer.write(segment.length + " " + segment.minTime + " " + segment.maxTime + "\n");
+			for(String party : segment.parties)
+			{
+				writer.write(party + "\n");
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+	
+	private boolean readIndex(Segment segment) throws IOException
+	{
+		File file = new File(folder, segment.id + INDEX_SUFFIX);
+		if(!file.exists()) return false;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try
+		{
+			String[] header = reader.readLine().split(" ");
+			segment.length = Integer.parseInt(header[0]);
+			segment.minTime = Long.parseLong(header[1]);
+			segment.maxTime = Long.parseLong(header[2]);
+			
+			String party;
+			while((party = reader.readLine()) != null)
+			{
+				if(party.length() > 0) segment.parties.add(party);
+			}
+			return true;
+		}
+		catch(RuntimeException e)
+		{
+			//damaged, the segment is scanned again
+			segment.parties.clear();
+			return false;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	//the mapping stays valid after the file is closed
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException
+	{
+		RandomAccessFile access = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try
+		{
+			if(mode != FileChannel.MapMode.READ_ONLY) access.setLength(size);
+			return access.getChannel().map(mode, 0, Math.min(size, access.length()));
+		}
+		finally
+		{
+			access.close();
+		}
+	}
+	
+	//a mapping is otherwise only released when it is garbage collected, and Windows cannot delete or
+	//truncate a mapped file; the cleaner is not public API, so this is best effort
+	private static void unmap(MappedByteBuffer buffer)
+	{
+		if(buffer == null) return;
+		try
+		{
+			//java 9 and newer
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+			return;
+		}
+		catch(Exception e)
+		{
+			//older java
+		}
+		try
+		{
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if(cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+		}
+		catch(Exception e)
+		{
+			//left to the garbage collector
+		}
+	}
+	
+	//length of the longest prefix of at most max bytes that does not end inside a character
+	static int cut(byte[] utf8, int max)
+	{
+		if(utf8.length <= max) return utf8.length;
+		
+		//continuation bytes are 10xxxxxx, the cut moves back to the first byte of the split character
+		int length = max;
+		while(length > 0 && (utf8[length] & 0xC0) == 0x80) length--;
+		return length;
+	}
+	
+	private static void putString(ByteBuffer buffer, byte[] bytes, int length)
+	{
+		buffer.putShort((short) length);
+		buffer.put(bytes, 0, length);
+	}
+	
+	private static String getString(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static class Segment implements Comparable<Segment>
+	{
+		final long id;
+		final File file;
+		//lower case names of the parties with records in the segment
+		final Set<String> parties = new HashSet<String>();
+		long minTime = Long.MAX_VALUE;
+		long maxTime;
+		int length;
+		//only set while the segment is active
+		MappedByteBuffer buffer;
+		
+		Segment(long id, File file)
+		{
+			this.id = id;
+			this.file = file;
+		}
+		
+		void add(long time, String partyName)
+		{
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			parties.add(partyName.toLowerCase());
+		}
+		
+		boolean matches(Query query)
+		{
+			if(length == 0 || query.from > maxTime || query.to < minTime) return false;
+			return query.partyName == null || parties.contains(query.partyName.toLowerCase());
+		}
+		
+		public int compareTo(Segment other)
+		{
+			return id < other.id ? -1 : (id == other.id ? 0 : 1);
+		}
+	}
+	
+	//null fields match everything, text is matched ignoring case
+	public static class Query
+	{
+		public final String partyName;
+		public final String playerName;
+		public final long from;
+		public final long to;
+		public final String text;
+		
+		public Query(String partyName, String playerName, long from, long to, String text)
+		{
+			this.partyName = partyName;
+			this.playerName = playerName;
+			this.from = from;
+			this.to = to;
+			this.text = text == null ? null : text.toLowerCase();
+		}
+		
+		boolean matches(long time, String party, String player, String message)
+		{
+			if(time < from || time > to) return false;
+			if(partyName != null && !partyName.equalsIgnoreCase(party)) return false;
+			if(playerName != null && !playerName.equalsIgnoreCase(player)) return false;
+			return text == null || message.toLowerCase().contains(text);
+		}
+	}
+	
+	public static class Page
+	{
+		public final List<String> lines = new ArrayList<String>();
+		public boolean more;
+		public long nextSegment;
+		public int nextOffset;
+	}
+}
@@ -19,29 +19,72 @@
  */
 package com.github.schmidtbochum.chatparty;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.bukkit.ChatColor;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
-import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class ChatPartyPlugin extends JavaPlugin
 {
-	private HashMap<String, Party> activeParties;
-	private ArrayList<Player> spyPlayers;
+	private PartyRegistry registry;
+	private PersistenceQueue persistence;
+	private AuditLog auditLog;
+	private ChatLog chatLog;
+	private Mailbox mailbox;
+	private ConcurrentHashMap<UUID, PlayerSession> sessions;
+	//same sessions by storage id
+	private ConcurrentHashMap<String, PlayerSession> sessionIds;
+	//party name -> callbacks waiting for the storage read of that party; main thread only
+	private HashMap<String, List<PartyCallback>> loadingParties;
+	private Set<Player> hiddenGlobalChat;
+	private SpyIndex spyIndex;
+	private IdentityCache identities;
+	private InvitationWheel invitationWheel;
+	private MessageDispatcher dispatcher;
+	private MessageBus bus;
+	private Metrics metrics;
+	private RateLimiter playerRateLimit;
+	private RateLimiter partyRateLimit;
+	private LinkedHashMap<String, PartyCommand> partyCommands;
+	private NameIndex commandNames;
+	private NameIndex partyNames;
+	private NameIndex onlinePlayers;
 	private boolean config_invertP;
 	private boolean config_toggleWithP;
+	private boolean config_uuidIds;
+	private int config_partyCacheSize;
+	private long config_partyIdleTime;
+	private int config_invitationExpireAfter;
+	private int config_maxInvitations;
+	public int config_historySize;
+	private int config_historyReplay;
+	private long config_mailboxDelay;
+	private int config_mailboxBatchSize;
 	public ChatColor config_messageColor;
-	public String config_chatFormat;
+	public MessageTemplate config_chatFormat;
+	public MessageTemplate partyMessageFormat;
+	private MessageTemplate spyMessageFormat;
+	private MessageTemplate logMessageFormat;
 	public final boolean GUILD_MODE = false;
 	public final String TEXT_PARTY = (GUILD_MODE ? "guild" : "party");
 	public final String TEXT_PARTY2 = (GUILD_MODE ? "Guild" : "Party");
@@ -50,215 +93,1380 @@ public class ChatPartyPlugin extends JavaPlugin
 	
 	public void onEnable()
 	{
+		//the yaml storage replaces config.yml through SnapshotFile, a crash can leave only the backup
+		try
+		{
+			SnapshotFile.recover(new File(getDataFolder(), "config.yml"));
+		}
+		catch(IOException e)
+		{
+			getLogger().log(Level.WARNING, "Could not restore config.yml", e);
+		}
+		
 		// copy default config
 		getConfig().options().copyDefaults(true);
 		saveConfig();
 		
 		config_invertP = getConfig().getBoolean("invertP");
 		config_toggleWithP = getConfig().getBoolean("toggleWithP");
-		config_chatFormat = ChatColor.translateAlternateColorCodes('&', getConfig().getString("chatFormat"));
+		config_uuidIds = getConfig().getString("playerIds", "name").equalsIgnoreCase("uuid");
+		config_chatFormat = MessageTemplate.compile(ChatColor.translateAlternateColorCodes('&', getConfig().getString("chatFormat")));
 		config_messageColor = ChatColor.getByChar(getConfig().getString("messageColor").substring(1));
 		if(config_messageColor == null) config_messageColor = ChatColor.WHITE;
+		partyMessageFormat = MessageTemplate.compile(config_messageColor + "["+TEXT_PARTY+"] {MESSAGE}");
+		spyMessageFormat = MessageTemplate.compile(ChatColor.GRAY + "[{SHORTNAME}] {MESSAGE}");
+		logMessageFormat = MessageTemplate.compile("[{SHORTNAME}] {MESSAGE}");
+		config_partyCacheSize = Math.max(1, getConfig().getInt("partyCacheSize"));
+		config_partyIdleTime = getConfig().getLong("partyIdleTime") * 1000L;
+		config_invitationExpireAfter = Math.max(1, getConfig().getInt("invitations.expireAfter"));
+		config_maxInvitations = Math.max(1, getConfig().getInt("invitations.maxPerPlayer"));
+		config_historySize = Math.max(0, getConfig().getInt("history.size"));
+		config_historyReplay = Math.min(config_historySize, getConfig().getInt("history.replayOnJoin"));
+		config_mailboxDelay = Math.max(0, getConfig().getLong("mailbox.delay")) * 20L;
+		config_mailboxBatchSize = Math.max(1, getConfig().getInt("mailbox.batchSize"));
+		
+		auditLog = new AuditLog(this, new File(getDataFolder(), "logs"), 
+				Math.max(1, getConfig().getInt("audit.queueSize")), 
+				Math.max(1, getConfig().getLong("audit.maxFileSize")) * 1024L * 1024L, 
+				getConfig().getString("audit.overflow", "drop").equalsIgnoreCase("block"), 
+				getConfig().getLong("audit.blockTimeout"), 
+				getConfig().getBoolean("audit.console"));
+		if(getConfig().getBoolean("audit.enabled")) auditLog.start();
+		if(getConfig().getBoolean("chatLog.enabled")) 
+		{
+			chatLog = new ChatLog(this, new File(getDataFolder(), "chatlog"), 
+					Math.max(1, getConfig().getInt("chatLog.segmentSize")) * 1024 * 1024, 
+					Math.max(1, getConfig().getLong("chatLog.retentionDays")) * 24L * 60L * 60L * 1000L);
+			try 
+			{
+				chatLog.open();
+			}
+			catch(IOException e) 
+			{
+				getLogger().log(Level.SEVERE, "Could not open the chat log", e);
+				chatLog = null;
+			}
+		}
+		
+		metrics = new Metrics();
+		if(getConfig().getBoolean("rateLimit.enabled")) 
+		{
+			playerRateLimit = new RateLimiter(Math.max(0.01, getConfig().getDouble("rateLimit.playerRate")), getConfig().getInt("rateLimit.playerBurst"));
+			partyRateLimit = new RateLimiter(Math.max(0.01, getConfig().getDouble("rateLimit.partyRate")), getConfig().getInt("rateLimit.partyBurst"));
+		}
+		dispatcher = new MessageDispatcher(getConfig().getBoolean("dispatcher.enabled"), 
+				Math.max(1, getConfig().getInt("dispatcher.perTickBudget")), 
+				Math.max(1, getConfig().getInt("dispatcher.maxQueuePerPlayer")));
+		
+		registry = new PartyRegistry();
+		sessions = new ConcurrentHashMap<UUID, PlayerSession>();
+		sessionIds = new ConcurrentHashMap<String, PlayerSession>();
+		loadingParties = new HashMap<String, List<PartyCallback>>();
+		hiddenGlobalChat = Collections.newSetFromMap(new ConcurrentHashMap<Player, Boolean>());
+		spyIndex = new SpyIndex();
+		invitationWheel = new InvitationWheel(this, 512);
+		commandNames = new NameIndex();
+		partyNames = new NameIndex();
+		onlinePlayers = new NameIndex();
+		registerCommands();
+		
+		PartyStorage storage = openStorage();
+		if(storage == null)
+		{
+			getServer().getPluginManager().disablePlugin(this);
+			return;
+		}
+		persistence = new PersistenceQueue(this, storage);
+		identities = new IdentityCache(this, storage, getConfig().getInt("identityCacheSize"));
+		long saveInterval = Math.max(1, getConfig().getLong("saveInterval")) * 20L;
+		getServer().getScheduler().runTaskTimerAsynchronously(this, persistence, saveInterval, saveInterval);
+		if(getConfig().getBoolean("mailbox.enabled")) 
+		{
+			mailbox = new Mailbox(new File(getDataFolder(), "mailbox.dat"), 
+					Math.max(1, getConfig().getInt("mailbox.size")), 
+					Math.max(1, getConfig().getLong("mailbox.expireAfter")) * 60L * 60L * 1000L, 
+					getConfig().getBoolean("mailbox.chat"));
+			try 
+			{
+				mailbox.load();
+			}
+			catch(IOException e) 
+			{
+				getLogger().log(Level.WARNING, "Could not read the mailbox, the kept messages are lost", e);
+			}
+			getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() 
+			{
+				public void run() 
+				{
+					mailbox.expire();
+					saveMailbox();
+				}
+			}, saveInterval, saveInterval);
+		}
+		getServer().getScheduler().runTaskTimer(this, new Runnable() 
+		{
+			public void run() 
+			{
+				registry.evict(config_partyCacheSize, config_partyIdleTime, persistence);
+			}
+		}, 600L, 600L);
+		if(dispatcher.isEnabled()) getServer().getScheduler().runTaskTimer(this, dispatcher, 1L, 1L);
+		getServer().getScheduler().runTaskTimer(this, invitationWheel, 20L, 20L);
+		long metricsDumpInterval = getConfig().getLong("metrics.dumpInterval") * 20L;
+		if(chatLog != null) 
+		{
+			getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() 
+			{
+				public void run() 
+				{
+					chatLog.expire();
+				}
+			}, 72000L, 72000L);
+		}
+		if(metricsDumpInterval > 0) 
+		{
+			final File metricsFile = new File(getDataFolder(), "metrics.log");
+			getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() 
+			{
+				public void run() 
+				{
+					try 
+					{
+						metrics.dump(ChatPartyPlugin.this, metricsFile);
+					}
+					catch(IOException e) 
+					{
+						getLogger().log(Level.WARNING, "Could not write " + metricsFile.getName(), e);
+					}
+				}
+			}, metricsDumpInterval, metricsDumpInterval);
+		}
+		long permissionRefreshInterval = Math.max(1, getConfig().getLong("permissionRefreshInterval")) * 20L;
+		getServer().getScheduler().runTaskTimer(this, new Runnable() 
+		{
+			public void run() 
+			{
+				for(PlayerSession session : sessions.values()) 
+				{
+					session.refreshPermissions();
+				}
+			}
+		}, permissionRefreshInterval, permissionRefreshInterval);
 		
-		activeParties = new HashMap<String, Party>();
-		spyPlayers = new ArrayList<Player>();
+		if(getConfig().getBoolean("bus.enabled")) startBus();
 		
 		for(Player player : getServer().getOnlinePlayers()) 
 		{
+			openSession(player);
 			registerSpy(player);
+			activatePlayer(player, false);
+			deliverMail(player);
+		}
+		
+		
+		getServer().getPluginManager().registerEvents(new PlayerEventHandler(this), this);
+	}
+	
+	public void onDisable()
+	{
+		//seals the full segments as well, their seal tasks would be cancelled below
+		if(chatLog != null) chatLog.close();
+		getServer().getScheduler().cancelTasks(this);
+		if(bus != null) bus.stop();
+		if(dispatcher != null) dispatcher.flush();
+		
+		//final synchronous flush of everything that is still pending
+		if(persistence != null) 
+		{
+			persistence.flush();
+			persistence.getStorage().close();
+		}
+		if(auditLog != null) auditLog.stop();
+		
+		//the players that are still online get the messages sent until the next start
+		if(mailbox != null) 
+		{
+			for(PlayerSession session : sessions.values()) 
+			{
+				if(session.party != null) mailbox.leave(session.id, session.party.name);
+			}
+			saveMailbox();
+		}
+	}
+	
+	private void saveMailbox() 
+	{
+		try 
+		{
+			mailbox.save();
+		}
+		catch(IOException e) 
+		{
+			getLogger().log(Level.WARNING, "Could not save the mailbox", e);
+		}
+	}
+	
+	public void saveParty(Party party) 
+	{
+		persistence.markParty(party);
+	}
+	
+	public MessageDispatcher getDispatcher() 
+	{
+		return dispatcher;
+	}
+	
+	public AuditLog getAuditLog() 
+	{
+		return auditLog;
+	}
+	
+	public Metrics getMetrics() 
+	{
+		return metrics;
+	}
+	
+	//null if mailbox.enabled is off
+	public Mailbox getMailbox() 
+	{
+		return mailbox;
+	}
+	
+	//null unless bus.enabled is set
+	public MessageBus getBus() 
+	{
+		return bus;
+	}
+	
+	private void startBus() 
+	{
+		String nodeId = getConfig().getString("bus.nodeId", "");
+		if(nodeId.length() == 0) nodeId = UUID.randomUUID().toString();
+		
+		bus = new TcpMessageBus(getLogger(), getConfig().getString("bus.host", "127.0.0.1"), getConfig().getInt("bus.port"), nodeId, 
+				Math.max(1, getConfig().getInt("bus.batchSize")), 
+				Math.max(1, getConfig().getInt("bus.queueSize")));
+		try 
+		{
+			bus.start(new MessageBus.Listener() 
+			{
+				public void received(final List<BusMessage> messages) 
+				{
+					//one task per batch, everything is applied on the main thread
+					getServer().getScheduler().runTask(ChatPartyPlugin.this, new Runnable() 
+					{
+						public void run() 
+						{
+							for(BusMessage message : messages) 
+							{
+								receive(message);
+							}
+						}
+					});
+				}
+			});
+		}
+		catch(IOException e) 
+		{
+			getLogger().log(Level.SEVERE, "Could not start the message bus", e);
+			bus = null;
+		}
+	}
+	
+	//safe to call from the async chat thread
+	public void relay(BusMessage message) 
+	{
+		if(bus != null) bus.publish(message);
+	}
+	
+	//sends the current role of the player, or his removal if he is no longer a member
+	private void relayRole(Party party, String playerId, String playerName) 
+	{
+		if(bus == null) return;
+		
+		PartyRole role = party.getRole(playerId);
+		if(role == null) 
+		{
+			bus.publish(BusMessage.remove(party.name, playerId, playerName));
+		}
+		else
+		{
+			bus.publish(BusMessage.role(party.name, playerId, playerName, role));
+		}
+	}
+	
+	//applies a message from another server, nothing is relayed again
+	private void receive(BusMessage message) 
+	{
+		metrics.busReceived.incrementAndGet();
+		
+		Party party;
+		switch(message.type) 
+		{
+		case CHAT:
+			party = registry.getParty(message.partyName);
+			if(party == null) return;
+			
+			party.receivePlayerMessage(message.playerName, message.displayName, message.text);
+			deliverSpyMessage(party, message.playerName + ": " + message.text);
+			break;
+		case SYSTEM:
+			party = registry.getParty(message.partyName);
+			if(party == null) return;
+			
+			party.receivePartyMessage(message.text);
+			break;
+		case ROLE:
+			receiveRole(message);
+			break;
+		case REMOVE:
+			receiveRemove(message);
+			break;
+		}
+	}
+	
+	private void receiveRole(final BusMessage message) 
+	{
+		identities.remember(message.playerId, message.playerName);
+		
+		loadParty(message.partyName, new PartyCallback() 
+		{
+			public void loaded(Party party) 
+			{
+				applyRole(message, party);
+			}
+		});
+	}
+	
+	private void applyRole(BusMessage message, Party party) 
+	{
+		if(party == null) 
+		{
+			//created on another server
+			if(message.role != PartyRole.LEADER) return;
+			
+			party = new Party(message.partyName, this);
+			party.setRole(message.playerId, message.playerName, message.role);
+			registry.register(party);
+			partyNames.add(party.name);
+		}
+		else
+		{
+			party.setRole(message.playerId, message.playerName, message.role);
+			registry.addMember(party, message.playerId);
+		}
+		
+		PlayerSession session = getOnlineSession(message.playerId);
+		if(session != null) 
+		{
+			session.party = party;
+			session.leader = message.role == PartyRole.LEADER;
+			party.activePlayers.addIfAbsent(session.player);
+		}
+		
+		persistence.markPlayer(message.playerId, party.name);
+		saveParty(party);
+	}
+	
+	private void receiveRemove(final BusMessage message) 
+	{
+		loadParty(message.partyName, new PartyCallback() 
+		{
+			public void loaded(Party party) 
+			{
+				applyRemove(message, party);
+			}
+		});
+	}
+	
+	private void applyRemove(BusMessage message, Party party) 
+	{
+		if(party == null || !party.removeMember(message.playerId)) return;
+		
+		registry.removeMember(party, message.playerId);
+		removePlayer(message.playerId);
+		
+		PlayerSession session = getOnlineSession(message.playerId);
+		if(session != null && session.party == party) 
+		{
+			session.party = null;
+			session.leader = false;
+			party.activePlayers.remove(session.player);
+		}
+		
+		if(party.count(PartyRole.LEADER) == 0) 
+		{
+			disbandParty(party);
+		}
+		else
+		{
+			saveParty(party);
+		}
+	}
+	
+	//only called on join (and for the players that are online on enable), so a player who quit
+	//while a chat event or a message to him was in flight does not get a new session afterwards
+	public PlayerSession openSession(Player player) 
+	{
+		PlayerSession session = new PlayerSession(player, getPlayerId(player));
+		PlayerSession existing = sessions.putIfAbsent(player.getUniqueId(), session);
+		if(existing != null) return existing;
+		
+		sessionIds.put(session.id, session);
+		return session;
+	}
+	
+	//the uuid of a player on Bukkit 1.4.6 belongs to his entity on this server and is not the same on
+	//other servers, so the name is the default id; playerIds: uuid is for servers with account uuids
+	private String getPlayerId(Player player) 
+	{
+		return config_uuidIds ? player.getUniqueId().toString() : player.getName();
+	}
+	
+	//null if the player has quit; the async chat thread has to check for that
+	public PlayerSession getSession(Player player) 
+	{
+		return sessions.get(player.getUniqueId());
+	}
+	
+	public void closeSession(Player player) 
+	{
+		PlayerSession session = sessions.remove(player.getUniqueId());
+		if(session != null) 
+		{
+			sessionIds.remove(session.id, session);
+			clearInvitations(session);
+		}
+		onlinePlayers.remove(player.getName());
+		hiddenGlobalChat.remove(player);
+	}
+	
+	//adds or renews an invitation, the oldest one is dropped when the player has too many
+	private void invite(PlayerSession session, Party party, Player inviter) 
+	{
+		Invitation previous = session.invitations.remove(party.name.toLowerCase());
+		if(previous != null) invitationWheel.cancel(previous);
+		
+		Iterator<Invitation> iterator = session.invitations.values().iterator();
+		while(session.invitations.size() >= config_maxInvitations && iterator.hasNext()) 
+		{
+			invitationWheel.cancel(iterator.next());
+			iterator.remove();
+		}
+		
+		Invitation invitation = new Invitation(session, party.name, inviter.getName());
+		session.invitations.put(party.name.toLowerCase(), invitation);
+		invitationWheel.schedule(invitation, config_invitationExpireAfter);
+	}
+	
+	private void clearInvitations(PlayerSession session) 
+	{
+		for(Invitation invitation : session.invitations.values()) 
+		{
+			invitationWheel.cancel(invitation);
+		}
+		session.invitations.clear();
+	}
+	
+	//called by the invitation wheel on the main thread
+	public void expireInvitation(Invitation invitation) 
+	{
+		PlayerSession session = invitation.session;
+		if(session.invitations.get(invitation.partyName.toLowerCase()) != invitation) return;
+		
+		session.invitations.remove(invitation.partyName.toLowerCase());
+		sendMessage(session.player, "The invitation to the "+TEXT_PARTY+" \"" + invitation.partyName + "\" expired.");
+	}
+	
+	public Set<Player> getHiddenGlobalChat() 
+	{
+		return hiddenGlobalChat;
+	}
+	
+	public Party getPlayerParty(Player player) 
+	{
+		PlayerSession session = getSession(player);
+		return session == null ? null : session.party;
+	}
+	
+	//session of an online player by storage id, null for offline players and ids from before player ids
+	private PlayerSession getOnlineSession(String playerId) 
+	{
+		return sessionIds.get(playerId);
+	}
+	
+	//like getPlayerParty, but loads the party from the storage if it is not in memory
+	//calls back on the main thread with null if the player is in no party
+	private void loadPlayerParty(final String playerId, final PartyCallback callback) 
+	{
+		Party party = registry.getPlayerParty(playerId);
+		
+		//a pending change that is not in the registry means the player has left his party
+		if(party != null || persistence.isPlayerDirty(playerId)) 
+		{
+			callback.loaded(party);
+			return;
+		}
+		
+		getServer().getScheduler().runTaskAsynchronously(this, new Runnable() 
+		{
+			public void run() 
+			{
+				String partyName = null;
+				try 
+				{
+					partyName = persistence.getStorage().loadPlayerParty(playerId);
+				}
+				catch(StorageException e) 
+				{
+					getLogger().log(Level.SEVERE, e.getMessage(), e);
+				}
+				
+				final String result = partyName;
+				getServer().getScheduler().runTask(ChatPartyPlugin.this, new Runnable() 
+				{
+					public void run() 
+					{
+						//the player may have joined or left a party meanwhile
+						Party party = registry.getPlayerParty(playerId);
+						if(party != null || persistence.isPlayerDirty(playerId) || result == null) 
+						{
+							callback.loaded(party);
+							return;
+						}
+						
+						loadParty(result, new PartyCallback() 
+						{
+							public void loaded(Party party) 
+							{
+								callback.loaded(party == null || !party.isMember(playerId) ? null : party);
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+	
+	//opens the session of an online player and attaches him to his party (on join and on enable)
+	//the party is looked up in the background, commands that need it wait until partyLoading is cleared
+	public void activatePlayer(Player player, final boolean replay) 
+	{
+		final PlayerSession session = getSession(player);
+		session.refreshPermissions();
+		onlinePlayers.add(player.getName());
+		
+		if(!player.getName().equals(identities.getName(session.id))) persistence.markName(session.id, player.getName());
+		identities.remember(session.id, player.getName());
+		
+		session.partyLoading = true;
+		loadPlayerParty(session.id, new PartyCallback() 
+		{
+			public void loaded(Party party) 
+			{
+				if(party != null) 
+				{
+					attachPlayer(session, party, replay);
+					return;
+				}
+				migratePlayer(session, new PartyCallback() 
+				{
+					public void loaded(Party party) 
+					{
+						attachPlayer(session, party, replay);
+					}
+				});
+			}
+		});
+	}
+	
+	private boolean isCurrent(PlayerSession session) 
+	{
+		return sessions.get(session.player.getUniqueId()) == session;
+	}
+	
+	private void attachPlayer(PlayerSession session, Party party, boolean replay) 
+	{
+		session.partyLoading = false;
+		
+		//the player may have quit, or a bus message put him into a party while his own was loaded
+		if(!isCurrent(session) || session.party != null) return;
+		
+		session.party = party;
+		
+		if(party == null) return;
+		
+		Player player = session.player;
+		
+		//players can change their name between logins
+		if(!player.getName().equals(party.getMemberName(session.id))) 
+		{
+			party.setRole(session.id, player.getName(), party.getRole(session.id));
+			relayRole(party, session.id, player.getName());
+			saveParty(party);
+		}
+		
+		session.leader = party.isLeader(session.id);
+		
+		party.activePlayers.addIfAbsent(player);
+		
+		if(replay) sendHistory(player, party, config_historyReplay);
+	}
+	
+	//sends the messages kept while the player was offline in batches, starting shortly after the login
+	//returns false if there are none
+	public boolean deliverMail(final Player player) 
+	{
+		if(mailbox == null) return false;
+		
+		final String playerId = getSession(player).id;
+		mailbox.forget(playerId);
+		if(!mailbox.hasMail(playerId)) return false;
+		
+		getServer().getScheduler().runTaskLater(this, new Runnable() 
+		{
+			public void run() 
+			{
+				//still kept if the player left again before
+				if(!player.isOnline()) return;
+				
+				List<Mailbox.Mail> mails = mailbox.take(playerId);
+				if(mails == null) return;
+				
+				//through the dispatcher, so the header stays in front of the messages
+				dispatcher.send(player, config_messageColor + "--- While you were offline ---");
+				sendMail(player, playerId, mails, 0);
+			}
+		}, config_mailboxDelay);
+		return true;
+	}
+	
+	private void sendMail(final Player player, final String playerId, final List<Mailbox.Mail> mails, int start) 
+	{
+		if(!player.isOnline()) 
+		{
+			mailbox.restore(playerId, mails.subList(start, mails.size()));
+			return;
+		}
+		
+		SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm");
+		final int end = Math.min(mails.size(), start + config_mailboxBatchSize);
+		for(int i = start; i < end; i++) 
+		{
+			Mailbox.Mail mail = mails.get(i);
+			dispatcher.send(player, ChatColor.GRAY + "[" + format.format(new Date(mail.time)) + "] " + mail.line);
+		}
+		if(end == mails.size()) return;
+		
+		getServer().getScheduler().runTaskLater(this, new Runnable() 
+		{
+			public void run() 
+			{
+				sendMail(player, playerId, mails, end);
+			}
+		}, 20L);
+	}
+	
+	//the dispatcher keeps at most maxQueuePerPlayer lines per player and the header takes one of them,
+	//a longer replay would lose its oldest lines
+	private int getHistoryLimit() 
+	{
+		if(!dispatcher.isEnabled()) return config_historySize;
+		return Math.min(config_historySize, dispatcher.getMaxQueue() - 1);
+	}
+	
+	private void sendHistory(Player player, Party party, int count) 
+	{
+		count = Math.min(count, getHistoryLimit());
+		if(count <= 0) return;
+		
+		String[] lines = new String[count];
+		long[] times = new long[count];
+		int copied = party.history.copy(lines, times);
+		if(copied == 0) return;
+		
+		//the header goes through the dispatcher as well, so it stays in front of the lines
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+		dispatcher.send(player, config_messageColor + "--- Recent "+TEXT_PARTY+" chat ---");
+		for(int i = 0; i < copied; i++) 
+		{
+			dispatcher.send(player, ChatColor.GRAY + "[" + format.format(new Date(times[i])) + "] " + lines[i]);
+		}
+	}
+	
+	//data from before player ids is stored by name and moves to the id on the first login
+	private void migratePlayer(final PlayerSession session, final PartyCallback callback) 
+	{
+		final String playerName = session.player.getName();
+		if(session.id.equals(playerName)) 
+		{
+			callback.loaded(null);
+			return;
+		}
+		
+		loadPlayerParty(playerName, new PartyCallback() 
+		{
+			public void loaded(Party party) 
+			{
+				if(party == null || !isCurrent(session) || session.party != null) 
+				{
+					callback.loaded(null);
+					return;
+				}
+				callback.loaded(changePlayerId(session, playerName, party));
+			}
+		});
+	}
+	
+	private Party changePlayerId(PlayerSession session, String playerName, Party party) 
+	{
+		registry.removeMember(party, playerName);
+		PartyRole role = party.getRole(playerName);
+		party.changeId(playerName, session.id, playerName);
+		registry.addMember(party, session.id);
+		
+		//the other servers only know the old key, they get a removal and an addition
+		relay(BusMessage.remove(party.name, playerName, playerName));
+		relay(BusMessage.role(party.name, session.id, playerName, role));
+		
+		persistence.markPlayer(playerName, null);
+		persistence.markPlayer(session.id, party.name);
+		saveParty(party);
+		return party;
+	}
+	
+	public void registerSpy(Player player) 
+	{
+		PlayerSession session = getSession(player);
+		
+		//subscriptions from before player ids are stored by name
+		if(!session.id.equals(player.getName()) && spyIndex.rename(player.getName(), session.id)) 
+		{
+			persistence.markSpy(player.getName(), new ArrayList<String>());
+			persistence.markSpy(session.id, spyIndex.getSubscriptions(session.id));
+		}
+		spyIndex.join(session.id, player);
+	}
+	
+	public void unregisterSpy(Player player) 
+	{
+		spyIndex.quit(player);
+	}
+	
+	//without arguments spy mode is all or nothing: drop every subscription or watch everything
+	public boolean toggleSpy(Player player) 
+	{
+		String playerId = getSession(player).id;
+		boolean result;
+		if(!spyIndex.getSubscriptions(playerId).isEmpty()) 
+		{
+			spyIndex.clear(playerId, player);
+			result = false;
+		}
+		else
+		{
+			spyIndex.toggle(playerId, player, SpyIndex.ALL);
+			result = true;
+		}
+		persistence.markSpy(playerId, spyIndex.getSubscriptions(playerId));
+		return result;
+	}
+	
+	public boolean toggleSpy(Player player, String target) 
+	{
+		String playerId = getSession(player).id;
+		boolean result = spyIndex.toggle(playerId, player, target);
+		persistence.markSpy(playerId, spyIndex.getSubscriptions(playerId));
+		return result;
+	}
+	
+	public List<String> getSpySubscriptions(Player player) 
+	{
+		return spyIndex.getSubscriptions(getSession(player).id);
+	}
+	
+	private boolean togglePartyChat(PlayerSession session)
+	{
+		session.partyToggle = !session.partyToggle;
+		return session.partyToggle;
+	}
+	private boolean toggleGlobalChat(PlayerSession session)
+	{
+		session.globalChatHidden = !session.globalChatHidden;
+		
+		if(session.globalChatHidden)
+		{
+			hiddenGlobalChat.add(session.player);
+		}
+		else
+		{
+			hiddenGlobalChat.remove(session.player);
+		}
+		return session.globalChatHidden;
+	}
+	
+	public void sendSpyPartyMessage(Party party, String message) 
+	{
+		deliverSpyMessage(party, message);
+		auditLog.log(logMessageFormat.render(party, null, message));
+	}
+	
+	private void deliverSpyMessage(Party party, String message) 
+	{
+		String spyMessage = null;
+		for(Player player : spyIndex.getWatchers(party)) 
+		{
+			PlayerSession session = getSession(player);
+			if(session != null && session.adminPermission && session.party != party) 
+			{
+				if(spyMessage == null) spyMessage = spyMessageFormat.render(party, null, message);
+				dispatcher.send(player, spyMessage);
+				metrics.spyDeliveries.incrementAndGet();
+			}
 		}
-		
-		
-		getServer().getPluginManager().registerEvents(new PlayerEventHandler(this), this);
 	}
 	
-	public void onDisable()
+	//checks the player and party chat limits, safe to call from the async chat thread
+	public boolean allowPartyChat(PlayerSession session, Party party) 
 	{
-		//saveConfig();
+		if(playerRateLimit == null || session.rateLimitBypass) return true;
+		
+		if(!playerRateLimit.tryAcquire(session.chatBucket)) 
+		{
+			metrics.rateLimited.incrementAndGet();
+			sendMessage(session.player, "You are sending messages too fast. Please wait a moment.");
+			return false;
+		}
+		if(!partyRateLimit.tryAcquire(party.chatBucket)) 
+		{
+			playerRateLimit.release(session.chatBucket);
+			metrics.rateLimited.incrementAndGet();
+			sendMessage(session.player, "Your "+TEXT_PARTY+" is sending messages too fast. Please wait a moment.");
+			return false;
+		}
+		return true;
 	}
 	
-	public void saveParty(Party party) 
+	public void sendSpyChatMessage(Party party, Player sender, String message) 
 	{
-		ConfigurationSection partySection = getConfig().getConfigurationSection("parties").createSection(party.name);
-		partySection.set("leaders", party.leaders);
-		partySection.set("members", party.members);
-		saveConfig();
-		reloadConfig();
+		sendSpyPartyMessage(party, sender.getName() +  ": " + message);
+		if(chatLog != null) chatLog.append(party.name, sender.getName(), message);
 	}
 	
-	public Party getPlayerParty(Player player) 
+	//key:value filters and the remaining words as text, null if a time is invalid
+	private ChatLog.Query parseSearch(String[] args) 
 	{
-		String partyName = getConfig().getConfigurationSection("players").getString(player.getName());
-		if(partyName != null)
-		{
-			return loadParty(partyName);
-		} 
-		else 
+		String partyName = null;
+		String playerName = null;
+		long from = 0;
+		long to = Long.MAX_VALUE;
+		StringBuilder text = new StringBuilder();
+		
+		for(int i = 1; i < args.length; i++) 
 		{
-			return null;
+			String arg = args[i];
+			String lowerArg = arg.toLowerCase();
+			
+			if(lowerArg.startsWith("party:")) 
+			{
+				partyName = arg.substring(6);
+			}
+			else if(lowerArg.startsWith("player:")) 
+			{
+				playerName = arg.substring(7);
+			}
+			else if(lowerArg.startsWith("since:") || lowerArg.startsWith("until:")) 
+			{
+				long age = parseDuration(lowerArg.substring(6));
+				if(age < 0) return null;
+				
+				if(lowerArg.startsWith("since:")) 
+				{
+					from = System.currentTimeMillis() - age;
+				}
+				else
+				{
+					to = System.currentTimeMillis() - age;
+				}
+			}
+			else
+			{
+				if(text.length() > 0) text.append(' ');
+				text.append(arg);
+			}
 		}
+		return new ChatLog.Query(partyName, playerName, from, to, text.length() > 0 ? text.toString() : null);
 	}
 	
-	public void registerSpy(Player player) 
+	//30s, 10m, 2h or 7d in milliseconds, -1 if invalid
+	private static long parseDuration(String duration) 
 	{
-		if(getConfig().getStringList("spy").contains(player.getName()))
+		if(duration.length() < 2) return -1;
+		
+		long value;
+		try 
+		{
+			value = Long.parseLong(duration.substring(0, duration.length() - 1));
+		}
+		catch(NumberFormatException e) 
+		{
+			return -1;
+		}
+		if(value < 0) return -1;
+		
+		switch(duration.charAt(duration.length() - 1)) 
 		{
-			spyPlayers.add(player);
+		case 's':
+			return value * 1000L;
+		case 'm':
+			return value * 60L * 1000L;
+		case 'h':
+			return value * 60L * 60L * 1000L;
+		case 'd':
+			return value * 24L * 60L * 60L * 1000L;
+		default:
+			return -1;
 		}
 	}
 	
-	public void unregisterSpy(Player player) 
+	//scans the chat log on an async task and sends one page of results back on the main thread
+	private void searchChatLog(final Player player, final PlayerSession session, final ChatLog.Query query, final long segment, final int offset) 
 	{
-		spyPlayers.remove(player);
+		final ChatLog log = chatLog;
+		getServer().getScheduler().runTaskAsynchronously(this, new Runnable() 
+		{
+			public void run() 
+			{
+				final ChatLog.Page page = log.search(query, segment, offset, SEARCH_PAGE_SIZE);
+				
+				getServer().getScheduler().runTask(ChatPartyPlugin.this, new Runnable() 
+				{
+					public void run() 
+					{
+						if(!player.isOnline()) return;
+						
+						session.search = query;
+						session.searchPage = page;
+						
+						if(page.lines.isEmpty()) 
+						{
+							sendMessage(player, "No matching messages.");
+							return;
+						}
+						for(String line : page.lines) 
+						{
+							player.sendMessage(ChatColor.GRAY + line);
+						}
+						if(page.more) sendMessage(player, "Type /"+TEXT_PARTY+" search more for the next page.");
+					}
+				});
+			}
+		});
 	}
 	
-	public boolean toggleSpy(Player player) 
+	//calls back on the main thread with the party or null if it does not exist
+	//parties that are not in memory are read on an async task, so a slow storage never holds up a tick;
+	//concurrent loads of the same party share one read and their callbacks run in the order of the calls
+	public void loadParty(final String name, PartyCallback callback) 
 	{
-		List<String> list = getConfig().getStringList("spy");
-		boolean result;
-		if(spyPlayers.contains(player)) 
+		Party party = registry.getParty(name);
+		
+		//dirty parties are never evicted, so a pending change for a party that is not in memory is a disband
+		if(party != null || persistence.isPartyDirty(name)) 
 		{
-			spyPlayers.remove(player);
-			list.remove(player.getName());
-			result = false;
+			callback.loaded(party);
+			return;
 		}
-		else
+		
+		List<PartyCallback> waiting = loadingParties.get(name);
+		if(waiting != null) 
 		{
-			spyPlayers.add(player);
-			list.add(player.getName());
-			result = true;
+			waiting.add(callback);
+			return;
 		}
-		getConfig().set("spy", list);
-		saveConfig();
-		return result;
+		waiting = new ArrayList<PartyCallback>();
+		waiting.add(callback);
+		loadingParties.put(name, waiting);
+		
+		getServer().getScheduler().runTaskAsynchronously(this, new Runnable() 
+		{
+			public void run() 
+			{
+				Party loaded = null;
+				try 
+				{
+					loaded = persistence.getStorage().loadParty(name);
+				}
+				catch(StorageException e) 
+				{
+					getLogger().log(Level.SEVERE, e.getMessage(), e);
+				}
+				
+				final Party result = loaded;
+				getServer().getScheduler().runTask(ChatPartyPlugin.this, new Runnable() 
+				{
+					public void run() 
+					{
+						partyLoaded(name, result);
+					}
+				});
+			}
+		});
 	}
 	
-	private boolean togglePartyChat(Player player)
+	private void partyLoaded(String name, Party loaded) 
 	{
-		if(player.hasMetadata("partyToggle"))
+		List<PartyCallback> waiting = loadingParties.remove(name);
+		
+		//every change to a party that is not in memory waits for this load, the checks are only a safety net
+		if(loaded != null && registry.getParty(name) == null && !persistence.isPartyDirty(name)) 
 		{
-			player.removeMetadata("partyToggle", this);
-			return false;
+			//make room first, so the party that was just loaded is never the one evicted
+			registry.trim(config_partyCacheSize - 1, persistence);
+			registry.register(loaded);
 		}
-		else
+		
+		//looked up again for every callback, an earlier one may have created or disbanded the party
+		for(PartyCallback callback : waiting) 
 		{
-			player.setMetadata("partyToggle", new FixedMetadataValue(this, true));
-			return true;
+			callback.loaded(registry.getParty(name));
 		}
 	}
-	private boolean toggleGlobalChat(Player player)
+	
+	public interface PartyCallback 
+	{
+		public void loaded(Party party);
+	}
+	
+	//opens the configured storage, parties are loaded from it on demand
+	private PartyStorage openStorage() 
 	{
-		if(player.hasMetadata("globalChatToggle"))
+		File configFile = new File(getDataFolder(), "config.yml");
+		String type = getConfig().getString("storage", "binary");
+		
+		PartyStorage storage;
+		File storageFile = null;
+		
+		if(type.equalsIgnoreCase("binary"))
 		{
-			player.removeMetadata("globalChatToggle", this);
-			return false;
+			storageFile = new File(getDataFolder(), "parties.dat");
+			storage = new BinaryStorage(this, storageFile, new File(getDataFolder(), "parties.log"), Math.max(1, getConfig().getInt("binaryCompactAfter")));
+		}
+		else if(type.equalsIgnoreCase("sqlite"))
+		{
+			storageFile = new File(getDataFolder(), "chatparty.db");
+			storage = new SqliteStorage(this, storageFile);
+		}
+		else if(type.equalsIgnoreCase("journal"))
+		{
+			storageFile = new File(getDataFolder(), "parties.journal");
+			storage = new JournalStorage(this, storageFile, new File(getDataFolder(), "parties.snapshot"), Math.max(1, getConfig().getInt("journalCompactAfter")));
 		}
 		else
 		{
-			player.setMetadata("globalChatToggle", new FixedMetadataValue(this, true));
-			return true;
+			storage = new YamlStorage(this, configFile);
 		}
-	}
-	
-	public void sendSpyPartyMessage(Party party, String message) 
-	{
-		for(Player player : spyPlayers) 
+		
+		try 
 		{
-			if(player.hasPermission("chatparty.admin") && (!player.hasMetadata("party") || party.name != player.getMetadata("party").get(0).asString())) 
+			boolean created = storageFile != null && !SnapshotFile.exists(storageFile);
+			File backupFile = new File(getDataFolder(), "config-before-" + type.toLowerCase() + ".yml");
+			if(created && backupFile.exists()) 
+			{
+				//the data was moved out of config.yml before, migrating again would start with nothing
+				getLogger().severe(storageFile.getName() + " is missing, but the data was already moved to it. Restore it, or the data from " + backupFile.getName() + ".");
+				return null;
+			}
+			
+			storage.open();
+			
+			if(created) 
+			{
+				YamlStorage yamlStorage = new YamlStorage(this, configFile);
+				yamlStorage.open();
+				migrateStorage(yamlStorage, storage);
+				removeStorageSections(configFile, type);
+			}
+			
+			spyIndex.load(storage.loadSpies());
+			for(String partyName : storage.loadPartyNames()) 
 			{
-				player.sendMessage(ChatColor.GRAY + "[" + party.shortName + "] " + message);
+				partyNames.add(partyName);
 			}
 		}
-		getLogger().info("[" + party.shortName + "] " + message);
+		catch(StorageException e) 
+		{
+			getLogger().log(Level.SEVERE, e.getMessage(), e);
+			return null;
+		}
+		
+		getLogger().info("Using " + type + " storage.");
+		return storage;
 	}
 	
-	public void sendSpyChatMessage(Party party, Player sender, String message) 
+	//after a migration config.yml keeps only the settings, the old file is kept as a backup
+	private void removeStorageSections(File configFile, String type) 
 	{
-		sendSpyPartyMessage(party, sender.getName() +  ": " + message);
+		boolean found = false;
+		for(String section : STORAGE_SECTIONS) 
+		{
+			//the empty defaults do not count
+			Object value = getConfig().get(section);
+			if(value instanceof ConfigurationSection && !((ConfigurationSection) value).getKeys(false).isEmpty()) found = true;
+			if(value instanceof List && !((List<?>) value).isEmpty()) found = true;
+		}
+		if(!found) return;
+		
+		File backupFile = new File(getDataFolder(), "config-before-" + type.toLowerCase() + ".yml");
+		if(backupFile.exists() || !configFile.renameTo(backupFile)) 
+		{
+			getLogger().warning("Could not back up config.yml, the old data stays in it.");
+			return;
+		}
+		for(String section : STORAGE_SECTIONS) 
+		{
+			getConfig().set(section, null);
+		}
+		saveConfig();
+		
+		getLogger().info("Moved the old data out of config.yml, a copy is in " + backupFile.getName() + ".");
 	}
 	
-	public Party loadParty(String name) 
+	//one-shot copy of all data into a new storage
+	private void migrateStorage(PartyStorage from, PartyStorage to) throws StorageException 
 	{
-		Party party = activeParties.get(name);
+		List<Party> parties = from.loadParties();
 		
-		if(party == null) 
+		for(Party party : parties) 
 		{
-			party = new Party(name, this);
-			
-			ConfigurationSection partySection = getConfig().getConfigurationSection("parties." + name);
-			
-			if(partySection == null || partySection.getStringList("leaders").size() == 0) return null;
+			to.saveParty(party.name, party.getMembers(PartyRole.LEADER), party.getMembers(PartyRole.MEMBER));
 			
-			party.leaders = (ArrayList<String>) partySection.getStringList("leaders");
-			party.members = (ArrayList<String>) partySection.getStringList("members");
-			
-			for(Player player : getServer().getOnlinePlayers()) 
+			for(String playerId : party.getMemberIds()) 
 			{
-				if(party.leaders.contains(player.getName()) || party.members.contains(player.getName())) 
-				{
-					party.activePlayers.add(player);
-				}
+				to.savePlayer(playerId, party.name);
+				
+				String playerName = party.getMemberName(playerId);
+				if(!playerName.equals(playerId)) to.saveName(playerId, playerName);
 			}
 		}
+		for(Map.Entry<String, List<String>> spy : from.loadSpies().entrySet()) 
+		{
+			to.saveSpy(spy.getKey(), spy.getValue());
+		}
+		to.commit();
+		from.close();
 		
-		return party;
+		getLogger().info("Migrated " + parties.size() + " " + TEXT_PARTIES + " to the new storage.");
 	}
 	
 	private void disbandParty(Party party)
 	{
-		for(String playerName : party.members) 
+		for(String playerId : party.getMemberIds()) 
+		{
+			removePlayer(playerId);
+		}
+		
+		for(Player player : party.activePlayers) 
+		{
+			PlayerSession session = getSession(player);
+			session.party = null;
+			session.leader = false;
+		}
+		
+		registry.unregister(party);
+		partyNames.remove(party.name);
+		
+		persistence.markPartyRemoved(party.name);
+		
+		auditLog.log("Disbanded the chat "+TEXT_PARTY+" \"" + party.name + "\".");
+	}
+	
+	public void savePlayer(Player player) 
+	{
+		PlayerSession session = getSession(player);
+		
+		if(session.party == null) 
+		{
+			persistence.markPlayer(session.id, null);
+		}
+		else
 		{
-			removePlayer(playerName);
+			persistence.markPlayer(session.id, session.party.name);
 		}
-		for(String playerName : party.leaders) 
+	}
+	
+	public void removePlayer(String playerId) 
+	{
+		persistence.markPlayer(playerId, null);
+		if(mailbox != null) mailbox.forget(playerId);
+	}
+	
+	//finds a member of the party by name; players that are not known under that name in the party
+	//are looked up by the identity cache, the action then runs later on the main thread
+	private void findMember(final Player player, final Party party, String playerName, final IdentityCache.Callback action) 
+	{
+		String playerId = party.getMemberId(playerName);
+		if(playerId != null) 
 		{
-			removePlayer(playerName);
+			action.resolved(playerId);
+			return;
 		}
 		
-		for(Player player : party.activePlayers) 
+		identities.resolve(playerName, new IdentityCache.Callback() 
+		{
+			public void resolved(String playerId) 
+			{
+				//the leader may have left or lost the party while the name was looked up
+				PlayerSession session = sessions.get(player.getUniqueId());
+				if(session == null || session.party != party || !session.leader) return;
+				
+				if(playerId == null || !party.isMember(playerId)) 
+				{
+					sendMessage(player, "The player is not a member of your "+TEXT_PARTY+".");
+					return;
+				}
+				action.resolved(playerId);
+			}
+		});
+	}
+	
+	private void sendNoInvitation(Player player) 
+	{
+		sendMessage(player, "No active "+TEXT_PARTY+" invitation.");
+		if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
+	}
+	
+	private void joinParty(Player player, PlayerSession session, Invitation invitation, Party party) 
+	{
+		//CONDITIONS
+		
+		if(party == null) 
 		{
-			player.removeMetadata("party", this);
-			player.removeMetadata("isPartyLeader", this);
+			invitationWheel.cancel(invitation);
+			session.invitations.remove(invitation.partyName.toLowerCase());
+			sendNoInvitation(player);
+			return;
 		}
 		
-		activeParties.remove(party.name);
+		//CONDITIONS END
 		
-		party.leaders = null;
-		party.members = null;
+		clearInvitations(session);
 		
-		//getConfig().getConfigurationSection("parties").set(party.name, null);
+		sendHistory(player, party, config_historyReplay);
 		
+		party.sendPartyMessage(player.getDisplayName() + ChatColor.GREEN + " joined the "+TEXT_PARTY+".");
+		sendSpyPartyMessage(party, player.getName() + " joined the "+TEXT_PARTY+".");
 		
+		party.setRole(session.id, player.getName(), PartyRole.MEMBER);
+		party.activePlayers.addIfAbsent(player);
+		registry.addMember(party, session.id);
+		relayRole(party, session.id, player.getName());
 		
-		saveConfig();
+		session.party = party;
+		
+		sendMessage(player, "You joined the "+TEXT_PARTY+" \"" +  party.name +"\".");
+		sendMessage(player, "Chat with /"+TEXT_P+" <message>");
 		
-		this.getLogger().info("Disbanded the chat "+TEXT_PARTY+" \"" + party.name + "\".");
+		savePlayer(player);
+		saveParty(party);
 	}
 	
-	public void savePlayer(Player player) 
+	private void createParty(Player player, PlayerSession session, String partyName) 
 	{
-		ConfigurationSection playerSection = getConfig().getConfigurationSection("players");
-
-		if(!player.hasMetadata("party")) 
+		Party party = new Party(partyName, this);
+		
+		party.setRole(session.id, player.getName(), PartyRole.LEADER);
+		party.activePlayers.addIfAbsent(player);
+		relayRole(party, session.id, player.getName());
+		
+		session.party = party;
+		session.leader = true;
+		//invitations from before would put him into a second party
+		clearInvitations(session);
+		
+		registry.register(party);
+		partyNames.add(party.name);
+		
+		savePlayer(player);
+		saveParty(party);
+		
+		sendMessage(player, "You created the "+TEXT_PARTY+" \"" + party.name + "\".");
+		sendMessage(player, "Invite your friends with /"+TEXT_PARTY+" invite <player>");
+		sendMessage(player, "Send a message to your "+TEXT_PARTY+" with /"+TEXT_P+" <message>");
+		
+		auditLog.log("Created the chat "+TEXT_PARTY+" \"" + party.name + "\".");
+	}
+	
+	private void promoteMember(Player player, Party party, String playerId) 
+	{
+		//CONDITIONS
+		
+		if(party.isLeader(playerId)) 
 		{
-			playerSection.set(player.getName(), null);
+			sendMessage(player, "The player is already a leader.");
+			return;
 		}
-		else
+		
+		//CONDITIONS END
+		
+		String playerName = party.getMemberName(playerId);
+		party.setRole(playerId, playerName, PartyRole.LEADER);
+		relayRole(party, playerId, playerName);
+		
+		PlayerSession memberSession = getOnlineSession(playerId);
+		if(memberSession != null)
 		{
-			String partyName = player.getMetadata("party").get(0).asString();
-			playerSection.set(player.getName(), partyName);
+			memberSession.leader = true;
 		}
-		saveConfig();
+		saveParty(party);
+		
+		party.sendPartyMessage(playerName + ChatColor.GREEN + " is now a leader of the "+TEXT_PARTY+".");
+		sendSpyPartyMessage(party, playerName + " is now a leader of the "+TEXT_PARTY+".");
 	}
 	
-	public void removePlayer(String playerName) 
+	private void kickMember(Player player, Party party, String playerId) 
 	{
-		ConfigurationSection playerSection = getConfig().getConfigurationSection("players");
-		playerSection.set(playerName, null);
-		saveConfig();
+		//CONDITIONS
+		
+		if(party.isLeader(playerId)) 
+		{
+			sendMessage(player, "You can't kick "+TEXT_PARTY+" leaders.");
+			return;
+		}
+		
+		//CONDITIONS END
+		
+		String playerName = party.getMemberName(playerId);
+		party.removeMember(playerId);
+		registry.removeMember(party, playerId);
+		
+		PlayerSession memberSession = getOnlineSession(playerId);
+		if(memberSession != null)
+		{
+			memberSession.party = null;
+			party.activePlayers.remove(memberSession.player);
+			sendMessage(memberSession.player, "You were kicked from the "+TEXT_PARTY+" \"" + party.name + "\".");
+		}
+		else if(mailbox != null) 
+		{
+			mailbox.send(playerId, config_messageColor + "You were kicked from the "+TEXT_PARTY+" \"" + party.name + "\".");
+		}
+		
+		removePlayer(playerId);
+		saveParty(party);
+		
+		party.sendPartyMessage(playerName + " was kicked from the "+TEXT_PARTY+".");
+		sendSpyPartyMessage(party, playerName + " was kicked from the "+TEXT_PARTY+".");
+		//after the message, the other servers may drop the party when they get the removal
+		relayRole(party, playerId, playerName);
 	}
 	
 	public static Pattern ALPHANUMERIC = Pattern.compile("[A-Za-z0-9 ]+");
+	public static Pattern SPY_TARGET = Pattern.compile("[A-Za-z0-9*?]{1,15}");
+	public static final int COMPLETION_LIMIT = 50;
+	public static final int SEARCH_PAGE_SIZE = 10;
+	//sections of config.yml that belong to the yaml storage
+	private static final String[] STORAGE_SECTIONS = { "players", "names", "parties", "spy", "spyTargets" };
 	
 	private boolean validateName(String name) 
 	{
@@ -273,6 +1481,19 @@ public class ChatPartyPlugin extends JavaPlugin
 	}
 	
 	public boolean onCommand(CommandSender sender, Command cmd,	String commandLabel, String[] args) 
+	{
+		long start = System.nanoTime();
+		try 
+		{
+			return handleCommand(sender, cmd, args);
+		}
+		finally 
+		{
+			metrics.command.record(System.nanoTime() - start);
+		}
+	}
+	
+	private boolean handleCommand(CommandSender sender, Command cmd, String[] args) 
 	{
 		Player player = null;
 		if (sender instanceof Player) 
@@ -283,6 +1504,9 @@ public class ChatPartyPlugin extends JavaPlugin
 		{
 			return false;
 		}
+		PlayerSession session = getSession(player);
+		session.refreshPermissions();
+		
 		if(cmd.getName().equalsIgnoreCase(TEXT_P)) 
 		{
 			//CONDITIONS
@@ -292,7 +1516,12 @@ public class ChatPartyPlugin extends JavaPlugin
 				sendMessage(player, "You do not have access to that command.");
 				return true;
 			}
-			if(!player.hasMetadata("party")) 
+			if(session.partyLoading) 
+			{
+				sendMessage(player, "Your "+TEXT_PARTY+" is still loading, try again in a moment.");
+				return true;
+			}
+			if(session.party == null) 
 			{
 				sendMessage(player, "You are not in a "+TEXT_PARTY+".");
 				if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
@@ -306,7 +1535,7 @@ public class ChatPartyPlugin extends JavaPlugin
 				}
 				else
 				{
-					boolean enabled = togglePartyChat(player);
+					boolean enabled = togglePartyChat(session);
 					
 					if(enabled) 
 					{
@@ -333,11 +1562,11 @@ public class ChatPartyPlugin extends JavaPlugin
 			
 			String message = builder.toString();
 			
-			if(config_invertP && player.hasMetadata("partyToggle")) 
+			if(config_invertP && session.partyToggle) 
 			{
-				if(!player.hasMetadata("globalChatToggle"))
+				if(!session.globalChatHidden)
 				{
-					player.setMetadata("ignore", new FixedMetadataValue(this, true));
+					session.ignoreNextChat = true;
 					player.chat(message);
 					return true;
 				}
@@ -348,8 +1577,9 @@ public class ChatPartyPlugin extends JavaPlugin
 				}
 			}
 			
-			String partyName = player.getMetadata("party").get(0).asString();
-			Party party = loadParty(partyName);
+			Party party = session.party;
+			
+			if(!allowPartyChat(session, party)) return true;
 			
 			party.sendPlayerMessage(player, message);
 			sendSpyChatMessage(party, player, message);
@@ -366,7 +1596,7 @@ public class ChatPartyPlugin extends JavaPlugin
 			}
 			//CONDITIONS END
 			
-			boolean toggled = toggleGlobalChat(player);
+			boolean toggled = toggleGlobalChat(session);
 			
 			if(toggled)
 			{
@@ -390,19 +1620,37 @@ public class ChatPartyPlugin extends JavaPlugin
 			
 			//CONDITIONS END
 			
-			if(args.length == 0 || args[0].equalsIgnoreCase("help")) 
+			PartyCommand command = partyCommands.get(args.length == 0 ? "help" : args[0].toLowerCase());
+			
+			if(command != null) 
+			{
+				return command.run(player, session, args);
+			}
+		}
+		return false;
+	}
+
+	//the /party subcommands, in the order of the help page
+	private void registerCommands() 
+	{
+		partyCommands = new LinkedHashMap<String, PartyCommand>();
+		
+		addCommand(new PartyCommand(this, "help", "chatparty.user", PartyCommand.Requirement.NONE, -1, "help", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
 			{
 				sendMessage(player, "--- "+TEXT_PARTY2+" Help ---");
 				
 				sendMessage(player, "/chat" + ChatColor.WHITE + ": Toggle the public chat.");
 				
-				if(player.hasMetadata("party")) 
+				if(session.party != null) 
 				{
 					sendMessage(player, "/"+TEXT_P+" <message>" + ChatColor.WHITE + ": Send a message to your "+TEXT_PARTY+"");
 					sendMessage(player, "/"+TEXT_PARTY+" leave" + ChatColor.WHITE + ": Leave your "+TEXT_PARTY+"");
 					sendMessage(player, "/"+TEXT_PARTY+" members" + ChatColor.WHITE + ": Show the member list");
+					sendMessage(player, "/"+TEXT_PARTY+" history [lines]" + ChatColor.WHITE + ": Show the recent "+TEXT_PARTY+" chat");
 					sendMessage(player, "/"+TEXT_PARTY+" toggle" + ChatColor.WHITE + ": Toggle the "+TEXT_PARTY+" chat");
-					if(player.hasMetadata("isPartyLeader") && player.hasPermission("chatparty.leader")) 
+					if(session.leader && player.hasPermission("chatparty.leader")) 
 					{
 						sendMessage(player, "/"+TEXT_PARTY+" invite <player>" + ChatColor.WHITE + ": Invite a player to your "+TEXT_PARTY+"");
 						sendMessage(player, "/"+TEXT_PARTY+" kick <player>" + ChatColor.WHITE + ": Kick a player from your "+TEXT_PARTY+"");
@@ -412,7 +1660,7 @@ public class ChatPartyPlugin extends JavaPlugin
 				}
 				else
 				{
-					sendMessage(player, "/"+TEXT_PARTY+" join" + ChatColor.WHITE + ": Accept a "+TEXT_PARTY+" invitation");
+					sendMessage(player, "/"+TEXT_PARTY+" join [name]" + ChatColor.WHITE + ": Accept a "+TEXT_PARTY+" invitation");
 					if(player.hasPermission("chatparty.leader"))
 					{
 						sendMessage(player, "/"+TEXT_PARTY+" create <name>" + ChatColor.WHITE + ": Create a new chat "+TEXT_PARTY+"");
@@ -421,120 +1669,133 @@ public class ChatPartyPlugin extends JavaPlugin
 				if(player.hasPermission("chatparty.admin"))
 				{
 					sendMessage(player, "/"+TEXT_PARTY+" spy" + ChatColor.WHITE + ": Toggle messages from all "+TEXT_PARTIES+".");
+					sendMessage(player, "/"+TEXT_PARTY+" spy <name>" + ChatColor.WHITE + ": Toggle messages from one "+TEXT_PARTY+" (* and ? match any letters).");
+					sendMessage(player, "/"+TEXT_PARTY+" spy list" + ChatColor.WHITE + ": Show the "+TEXT_PARTIES+" you are watching.");
+					sendMessage(player, "/"+TEXT_PARTY+" search [party:<name>] [player:<name>] [since:<time>] [until:<time>] [text]" + ChatColor.WHITE + ": Search the chat log, times like 30m or 2d.");
+					sendMessage(player, "/"+TEXT_PARTY+" stats" + ChatColor.WHITE + ": Show the plugin metrics.");
 				}
 				return true;
-			} 
-			else if(args[0].equalsIgnoreCase("join")) 
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "join", "chatparty.user", PartyCommand.Requirement.NO_PARTY, -1, "join [name]", null) 
+		{
+			protected boolean execute(final Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasMetadata("partyInvitation")) 
+				if(args.length > 2) 
 				{
-					sendMessage(player, "No active "+TEXT_PARTY+" invitation.");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
+					sendMessage(player, "Usage: /"+TEXT_PARTY+" " + usage);
 					return true;
 				}
-					
-				String partyName = player.getMetadata("partyInvitation").get(0).asString();
-				Party party = loadParty(partyName);
 				
-				if(party == null) 
+				Invitation invitation = null;
+				
+				if(args.length == 2) 
+				{
+					invitation = session.invitations.get(args[1].toLowerCase());
+				}
+				else if(session.invitations.size() == 1) 
 				{
-					sendMessage(player, "No active "+TEXT_PARTY+" invitation.");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
+					invitation = session.invitations.values().iterator().next();
+				}
+				else if(session.invitations.size() > 1) 
+				{
+					StringBuilder builder = new StringBuilder();
+					for(Invitation pending : session.invitations.values()) 
+					{
+					    if (builder.length() > 0) {
+					        builder.append(", ");
+					    }
+					    builder.append(pending.partyName);
+					}
+					sendMessage(player, "You are invited to: " + builder);
+					sendMessage(player, "To accept an invitation, type /"+TEXT_PARTY+" join <name>");
 					return true;
-				} 
-				
-				//CONDITIONS END
-				
-				player.removeMetadata("partyInvitation", this);
-				
-				party.sendPartyMessage(player.getDisplayName() + ChatColor.GREEN + " joined the "+TEXT_PARTY+".");
-				sendSpyPartyMessage(party, player.getName() + " joined the "+TEXT_PARTY+".");
-				
-				party.members.add(player.getName());
-				party.activePlayers.add(player);
-				
-				player.setMetadata("party", new FixedMetadataValue(this, party.name));
+				}
 				
-				sendMessage(player, "You joined the "+TEXT_PARTY+" \"" +  party.name +"\".");
-				sendMessage(player, "Chat with /"+TEXT_P+" <message>");
+				if(invitation == null) 
+				{
+					sendNoInvitation(player);
+					return true;
+				}
 				
-				savePlayer(player);
-				saveParty(party);
+				final Invitation accepted = invitation;
+				loadParty(invitation.partyName, new PartyCallback() 
+				{
+					public void loaded(Party party) 
+					{
+						//the player may have quit, joined another party or lost the invitation meanwhile
+						PlayerSession session = sessions.get(player.getUniqueId());
+						if(session == null || session.party != null) return;
+						
+						if(session.invitations.get(accepted.partyName.toLowerCase()) != accepted) 
+						{
+							sendNoInvitation(player);
+							return;
+						}
+						joinParty(player, session, accepted, party);
+					}
+				});
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("leave")) 
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
 			{
-				//CONDITIONS
+				if(args.length != 2) return super.complete(player, session, args);
 				
-				if(!player.hasMetadata("party")) 
+				List<String> invitedParties = new ArrayList<String>();
+				for(Invitation invitation : session.invitations.values()) 
 				{
-					sendMessage(player, "You are not in a "+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
-					return true;
+					invitedParties.add(invitation.partyName);
 				}
+				return NameIndex.complete(invitedParties, args[1], COMPLETION_LIMIT);
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "leave", "chatparty.user", PartyCommand.Requirement.PARTY, 0, "leave", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
+			{
+				Party party = session.party;
+				session.party = null;
+				session.leader = false;
 				
-				//CONDITIONS END
-				
-				String partyName = player.getMetadata("party").get(0).asString();
-				player.removeMetadata("party", this);
-				player.removeMetadata("isPartyLeader", this);
-				
-				Party party = loadParty(partyName);
-				
-				party.leaders.remove(player.getName());
-				party.members.remove(player.getName());
+				party.removeMember(session.id);
 				party.activePlayers.remove(player);
+				registry.removeMember(party, session.id);
 				
-				removePlayer(player.getName());
+				removePlayer(session.id);
 				
-				if(party.leaders.size() == 0) 
+				if(party.count(PartyRole.LEADER) == 0) 
 				{
 					party.sendPartyMessage("The "+TEXT_PARTY+" was disbanded because all leaders left.");
 					sendSpyPartyMessage(party, "The "+TEXT_PARTY+" was disbanded.");
 					disbandParty(party);
 				}
-				
-				
-				party.sendPartyMessage(player.getDisplayName() + ChatColor.GREEN + " left the "+TEXT_PARTY+".");
-				sendSpyPartyMessage(party, player.getName() + " left the "+TEXT_PARTY+".");
+				else
+				{
+					party.sendPartyMessage(player.getDisplayName() + ChatColor.GREEN + " left the "+TEXT_PARTY+".");
+					sendSpyPartyMessage(party, player.getName() + " left the "+TEXT_PARTY+".");
+					saveParty(party);
+				}
+				//after the message, the other servers disband the party when they get the removal of the last leader
+				relayRole(party, session.id, player.getName());
 				
 				sendMessage(player, "You left the "+TEXT_PARTY+" \"" +  party.name +"\".");
 				
 				savePlayer(player);
-				saveParty(party);
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("invite")) 
+		});
+		
+		addCommand(new PartyCommand(this, "invite", "chatparty.leader", PartyCommand.Requirement.LEADER, 1, "invite <player>", "invite other players") 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasPermission("chatparty.leader")) 
-				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
-				}
-				
-				if(!player.hasMetadata("party")) 
-				{
-					sendMessage(player, "You are not in a "+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
-					return true;
-				}
-				
-				if(!player.hasMetadata("isPartyLeader")) 
-				{
-					sendMessage(player, "Only "+TEXT_PARTY+" leaders can invite other players.");
-					return true;
-				}
-				
-				if(args.length != 2) 
-				{
-					sendMessage(player, "Usage: /"+TEXT_PARTY+" invite <player>");
-					return true;
-				}
-				
 				String playerName = args[1];
 				Player invitedPlayer = getServer().getPlayer(playerName);
 				
@@ -550,7 +1811,7 @@ public class ChatPartyPlugin extends JavaPlugin
 					return true;
 				}
 				
-				if(invitedPlayer.hasMetadata("party"))
+				if(getSession(invitedPlayer).party != null)
 				{
 					sendMessage(player, "The player is already in a "+TEXT_PARTY+".");
 					return true;
@@ -558,40 +1819,30 @@ public class ChatPartyPlugin extends JavaPlugin
 				
 				//CONDITIONS END
 				
-				String partyName = player.getMetadata("party").get(0).asString();
-				Party party = loadParty(partyName);
+				Party party = session.party;
 				
-				invitedPlayer.setMetadata("partyInvitation", new FixedMetadataValue(this, party.name));
+				invite(getSession(invitedPlayer), party, player);
 				
 				sendMessage(player, "You invited " +  invitedPlayer.getName() + " to your "+TEXT_PARTY+".");
 				
 				sendMessage(invitedPlayer, player.getName() + " invited you to the "+TEXT_PARTY+" \"" + party.name + "\".");
-				sendMessage(invitedPlayer, "To accept the invitation, type /"+TEXT_PARTY+" join");
+				sendMessage(invitedPlayer, "To accept the invitation, type /"+TEXT_PARTY+" join " + party.name + " (expires in " + config_invitationExpireAfter + " seconds)");
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("create")) 
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
+			{
+				return args.length == 2 ? onlinePlayers.complete(args[1], COMPLETION_LIMIT) : super.complete(player, session, args);
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "create", "chatparty.leader", PartyCommand.Requirement.NO_PARTY, 1, "create <name>", null) 
+		{
+			protected boolean execute(final Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasPermission("chatparty.leader")) 
-				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
-				}
-				
-				if(player.hasMetadata("party")) 
-				{
-					sendMessage(player, "You are already in a "+TEXT_PARTY+".");
-					return true;
-				}
-				
-				if(args.length != 2) 
-				{
-					sendMessage(player, "Usage: /"+TEXT_PARTY+" create <name>");
-					return true;
-				}
-				
-				String partyName = args[1];
+				final String partyName = args[1];
 				
 				if(partyName.length() > 15) 
 				{
@@ -609,265 +1860,336 @@ public class ChatPartyPlugin extends JavaPlugin
 					return true;
 				}
 				
-				if(loadParty(partyName) != null) {
-					sendMessage(player, "The party \"" + partyName + "\" already exists. Please choose a different name.");
-					return true;
-				}
-				
-				//CONDITIONS END
-				
-				Party party = new Party(partyName, this);
-				
-				party.leaders.add(player.getName());
-				party.activePlayers.add(player);
-				
-				player.setMetadata("party", new FixedMetadataValue(this, party.name));
-				player.setMetadata("isPartyLeader", new FixedMetadataValue(this, true));
-				
-				activeParties.put(partyName, party);
-				
-				savePlayer(player);
-				saveParty(party);
-				
-				sendMessage(player, "You created the "+TEXT_PARTY+" \"" + party.name + "\".");
-				sendMessage(player, "Invite your friends with /"+TEXT_PARTY+" invite <player>");
-				sendMessage(player, "Send a message to your "+TEXT_PARTY+" with /"+TEXT_P+" <message>");
-				
-				this.getLogger().info("Created the chat "+TEXT_PARTY+" \"" + party.name + "\".");
-				
+				loadParty(partyName, new PartyCallback() 
+				{
+					public void loaded(Party party) 
+					{
+						//the player may have quit or joined another party meanwhile
+						PlayerSession session = sessions.get(player.getUniqueId());
+						if(session == null || session.party != null) return;
+						
+						if(party != null) 
+						{
+							sendMessage(player, "The party \"" + partyName + "\" already exists. Please choose a different name.");
+							return;
+						}
+						createParty(player, session, partyName);
+					}
+				});
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("leader")) 
+		});
+		
+		addCommand(new PartyCommand(this, "leader", "chatparty.leader", PartyCommand.Requirement.LEADER, 1, "leader <player>", "promote other players") 
+		{
+			protected boolean execute(final Player player, PlayerSession session, String[] args) 
 			{
-				//CONDITIONS
-				
-				if(!player.hasPermission("chatparty.leader")) 
-				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
-				}
+				final Party party = session.party;
 				
-				if(!player.hasMetadata("party")) 
+				findMember(player, party, args[1], new IdentityCache.Callback() 
 				{
-					sendMessage(player, "You are not in a "+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own party with /"+TEXT_PARTY+" create <name>.");
-					return true;
-				}
+					public void resolved(String playerId) 
+					{
+						promoteMember(player, party, playerId);
+					}
+				});
 				
-				if(!player.hasMetadata("isPartyLeader")) 
-				{
-					sendMessage(player, "Only "+TEXT_PARTY+" leaders can promote other players.");
-					return true;
-				}
+				return true;
+			}
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
+			{
+				Party party = session.party;
+				return args.length == 2 && party != null ? NameIndex.complete(party.getMemberNames(PartyRole.MEMBER), args[1], COMPLETION_LIMIT) : super.complete(player, session, args);
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "kick", "chatparty.leader", PartyCommand.Requirement.LEADER, 1, "kick <player>", "kick other players") 
+		{
+			protected boolean execute(final Player player, PlayerSession session, String[] args) 
+			{
+				final Party party = session.party;
 				
-				if(args.length != 2) 
+				findMember(player, party, args[1], new IdentityCache.Callback() 
 				{
-					sendMessage(player, "Usage: /"+TEXT_PARTY+" leader <player>");
-					return true;
-				}
+					public void resolved(String playerId) 
+					{
+						kickMember(player, party, playerId);
+					}
+				});
 				
-				String playerName = args[1];
-				OfflinePlayer promotedPlayer = getServer().getOfflinePlayer(playerName);
+				return true;
+			}
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
+			{
+				Party party = session.party;
+				return args.length == 2 && party != null ? NameIndex.complete(party.getMemberNames(PartyRole.MEMBER), args[1], COMPLETION_LIMIT) : super.complete(player, session, args);
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "members", "chatparty.user", PartyCommand.Requirement.PARTY, 0, "members", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
+			{
+				Party party = session.party;
 				
-				String partyName = player.getMetadata("party").get(0).asString();
-				Party party = loadParty(partyName);
+				String sep = ", ";
 				
-				if(party.leaders.contains(promotedPlayer.getName())) 
-				{
-					sendMessage(player, "The player is already a leader.");
-					return true;
-				}
+				StringBuilder builder = new StringBuilder();
+				List<String> leaderNames = party.getMemberNames(PartyRole.LEADER);
+				List<String> memberNames = party.getMemberNames(PartyRole.MEMBER);
 				
-				if(!party.members.contains(promotedPlayer.getName()))
+				for(String name : leaderNames) 
 				{
-					sendMessage(player, "The player is not a member of your "+TEXT_PARTY+".");
-					return true;
+				    if (builder.length() > 0) {
+				        builder.append(sep);
+				    }
+				    builder.append(name);
 				}
 				
-				//CONDITIONS END
-				
-				party.members.remove(promotedPlayer.getName());
-				party.leaders.add(promotedPlayer.getName());
-				
-				
-				Player onlinePlayer = getServer().getPlayer(playerName);
+				String leaders = builder.toString();
 				
-				if(onlinePlayer != null && onlinePlayer.isOnline())
+				builder = new StringBuilder();
+				for(String name : memberNames) 
 				{
-					onlinePlayer.setMetadata("isPartyLeader", new FixedMetadataValue(this, true));
+				    if (builder.length() > 0) {
+				        builder.append(sep);
+				    }
+				    builder.append(name);
 				}
-				saveParty(party);
 				
-				party.sendPartyMessage(promotedPlayer.getName() + ChatColor.GREEN + " is now a leader of the "+TEXT_PARTY+".");
-				sendSpyPartyMessage(party, promotedPlayer.getName() + " is now a leader of the "+TEXT_PARTY+".");
+				String members = builder.toString();
+				
+				sendMessage(player, "Member List of the "+TEXT_PARTY+" \"" + party.name + "\":");
+				sendMessage(player, "Leaders (" + leaderNames.size() + "): " +  leaders);
+				sendMessage(player, "Members (" + memberNames.size() + "): " +  members);
 				
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("kick")) 
+		});
+		
+		addCommand(new PartyCommand(this, "history", "chatparty.user", PartyCommand.Requirement.PARTY, -1, "history [lines]", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasPermission("chatparty.leader")) 
-				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
-				}
-				
-				if(!player.hasMetadata("party")) 
-				{
-					sendMessage(player, "You are not in a "+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own party with /"+TEXT_PARTY+" create <name>.");
-					return true;
-				}
-				
-				if(!player.hasMetadata("isPartyLeader")) 
-				{
-					sendMessage(player, "Only "+TEXT_PARTY+" leaders can kick other players.");
-					return true;
-				}
+				int limit = getHistoryLimit();
+				int count = Math.min(10, limit);
 				
-				if(args.length != 2) 
+				if(args.length > 2) 
 				{
-					sendMessage(player, "Usage: /"+TEXT_PARTY+" kick <player>");
+					sendMessage(player, "Usage: /"+TEXT_PARTY+" " + usage);
 					return true;
 				}
-				
-				String playerName = args[1];
-				OfflinePlayer kickedPlayer = getServer().getOfflinePlayer(playerName);
-				
-				String partyName = player.getMetadata("party").get(0).asString();
-				Party party = loadParty(partyName);
-				
-			
-				if(party.leaders.contains(kickedPlayer.getName())) 
+				if(args.length == 2) 
 				{
-					sendMessage(player, "You can't kick "+TEXT_PARTY+" leaders.");
-					return true;
+					try 
+					{
+						count = Integer.parseInt(args[1]);
+					}
+					catch(NumberFormatException e) 
+					{
+						count = 0;
+					}
+					if(count < 1) 
+					{
+						sendMessage(player, "Usage: /"+TEXT_PARTY+" " + usage);
+						return true;
+					}
+					if(count > limit) 
+					{
+						sendMessage(player, "Only the last " + limit + " lines can be shown.");
+						count = limit;
+					}
 				}
 				
-				if(!party.members.contains(kickedPlayer.getName()))
+				if(session.party.history.size() == 0) 
 				{
-					sendMessage(player, "The player is not a member of your "+TEXT_PARTY+".");
+					sendMessage(player, "Nothing was said in your "+TEXT_PARTY+" recently.");
 					return true;
 				}
 				
 				//CONDITIONS END
 				
-				party.members.remove(kickedPlayer.getName());
-				
-				Player onlinePlayer = getServer().getPlayer(playerName);
-				if(onlinePlayer != null)
-				{
-					onlinePlayer.removeMetadata("party", this);
-					party.activePlayers.remove(onlinePlayer);
-					sendMessage(onlinePlayer, "You were kicked from the "+TEXT_PARTY+" \"" + party.name + "\".");
-				}
-				
-				removePlayer(kickedPlayer.getName());
-				saveParty(party);
-				
-				party.sendPartyMessage(kickedPlayer.getName() + " was kicked from the "+TEXT_PARTY+".");
-				sendSpyPartyMessage(party, kickedPlayer.getName() + " was kicked from the "+TEXT_PARTY+".");
-
+				sendHistory(player, session.party, count);
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("members")) 
+		});
+		
+		addCommand(new PartyCommand(this, "spy", "chatparty.admin", PartyCommand.Requirement.NONE, -1, "spy [name|list]", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasPermission("chatparty.user")) 
+				if(args.length > 2) 
 				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
-				}
-				
-				if(!player.hasMetadata("party")) 
-				{
-					sendMessage(player, "You are not in a"+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own party with /"+TEXT_PARTY+" create <name>.");
+					sendMessage(player, "Usage: /"+TEXT_PARTY+" " + usage);
 					return true;
 				}
 				
 				//CONDITIONS END
 				
-				String partyName = player.getMetadata("party").get(0).asString();
-				Party party = loadParty(partyName);
-				
-				String sep = ", ";
-				
-				StringBuilder builder = new StringBuilder();
-				for(String name : party.leaders) 
+				if(args.length == 1) 
 				{
-				    if (builder.length() > 0) {
-				        builder.append(sep);
-				    }
-				    builder.append(name);
+					boolean enabled = toggleSpy(player);
+					
+					if(enabled) 
+					{
+						sendMessage(player, "You enabled the spy mode.");
+					}
+					else
+					{
+						sendMessage(player, "You disabled the spy mode.");
+					}
 				}
-				
-				String leaders = builder.toString();
-				
-				builder = new StringBuilder();
-				for(String name : party.members) 
+				else if(args[1].equalsIgnoreCase("list")) 
 				{
-				    if (builder.length() > 0) {
-				        builder.append(sep);
-				    }
-				    builder.append(name);
+					List<String> targets = getSpySubscriptions(player);
+					
+					if(targets.isEmpty()) 
+					{
+						sendMessage(player, "You are not watching any "+TEXT_PARTIES+".");
+					}
+					else if(targets.contains(SpyIndex.ALL)) 
+					{
+						sendMessage(player, "You are watching all "+TEXT_PARTIES+".");
+					}
+					else
+					{
+						StringBuilder builder = new StringBuilder();
+						for(String target : targets) 
+						{
+						    if (builder.length() > 0) {
+						        builder.append(", ");
+						    }
+						    builder.append(target);
+						}
+						sendMessage(player, "You are watching: " + builder);
+					}
+				}
+				else
+				{
+					String target = args[1];
+					
+					if(!SPY_TARGET.matcher(target).matches()) 
+					{
+						sendMessage(player, "\"" + target + "\" is not a valid "+TEXT_PARTY+" name or pattern. Allowed characters are A-Z, a-z, 0-9, * and ?.");
+						return true;
+					}
+					
+					if(toggleSpy(player, target)) 
+					{
+						sendMessage(player, "You are now watching \"" + target + "\".");
+					}
+					else
+					{
+						sendMessage(player, "You are no longer watching \"" + target + "\".");
+					}
 				}
-				
-				String members = builder.toString();
-				
-				sendMessage(player, "Member List of the "+TEXT_PARTY+" \"" + party.name + "\":");
-				sendMessage(player, "Leaders (" + party.leaders.size() + "): " +  leaders);
-				sendMessage(player, "Members (" + party.members.size() + "): " +  members);
 				
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("spy")) 
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
+			{
+				if(args.length != 2) return super.complete(player, session, args);
+				
+				List<String> completions = partyNames.complete(args[1], COMPLETION_LIMIT);
+				if("list".startsWith(args[1].toLowerCase())) completions.add(0, "list");
+				return completions;
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "search", "chatparty.admin", PartyCommand.Requirement.NONE, -1, "search [party:<name>] [player:<name>] [since:<time>] [until:<time>] [text]", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
 			{
 				//CONDITIONS
 				
-				if(!player.hasPermission("chatparty.admin")) 
+				if(chatLog == null) 
 				{
-					sendMessage(player, "You do not have access to that command.");
+					sendMessage(player, "The chat log is disabled.");
 					return true;
 				}
 				
-				//CONDITIONS END
-				
-				boolean enabled = toggleSpy(player);
+				ChatLog.Query query;
+				long segment = 0;
+				int offset = 0;
 				
-				if(enabled) 
+				if(args.length == 2 && args[1].equalsIgnoreCase("more")) 
 				{
-					sendMessage(player, "You enabled the spy mode.");
+					if(session.searchPage == null || !session.searchPage.more) 
+					{
+						sendMessage(player, "There are no more results.");
+						return true;
+					}
+					query = session.search;
+					segment = session.searchPage.nextSegment;
+					offset = session.searchPage.nextOffset;
 				}
 				else
 				{
-					sendMessage(player, "You disabled the spy mode.");
+					query = parseSearch(args);
+					if(query == null) 
+					{
+						sendMessage(player, "Usage: /"+TEXT_PARTY+" " + usage);
+						return true;
+					}
 				}
 				
+				//CONDITIONS END
+				
+				searchChatLog(player, session, query, segment, offset);
 				return true;
 			}
-			else if(args[0].equalsIgnoreCase("toggle")) 
+			
+			public List<String> complete(Player player, PlayerSession session, String[] args) 
 			{
-				//CONDITIONS
-				
-				if(!player.hasPermission("chatparty.user")) 
+				String arg = args[args.length - 1];
+				if(arg.toLowerCase().startsWith("party:")) 
 				{
-					sendMessage(player, "You do not have access to that command.");
-					return true;
+					List<String> completions = new ArrayList<String>();
+					for(String partyName : partyNames.complete(arg.substring(6), COMPLETION_LIMIT)) 
+					{
+						completions.add(arg.substring(0, 6) + partyName);
+					}
+					return completions;
 				}
-				
-				if(!player.hasMetadata("party")) 
+				if(arg.toLowerCase().startsWith("player:")) 
 				{
-					sendMessage(player, "You are not in a "+TEXT_PARTY+".");
-					if(player.hasPermission("chatparty.leader")) sendMessage(player, "Create your own "+TEXT_PARTY+" with /"+TEXT_PARTY+" create <name>.");
-					return true;
+					List<String> completions = new ArrayList<String>();
+					for(String playerName : onlinePlayers.complete(arg.substring(7), COMPLETION_LIMIT)) 
+					{
+						completions.add(arg.substring(0, 7) + playerName);
+					}
+					return completions;
+				}
+				return super.complete(player, session, args);
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "stats", "chatparty.admin", PartyCommand.Requirement.NONE, 0, "stats", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
+			{
+				sendMessage(player, "ChatParty metrics:");
+				for(String line : metrics.report(ChatPartyPlugin.this)) 
+				{
+					sendMessage(player, line);
 				}
 				
-				//CONDITIONS END
-				
-				boolean enabled = togglePartyChat(player);
+				return true;
+			}
+		});
+		
+		addCommand(new PartyCommand(this, "toggle", "chatparty.user", PartyCommand.Requirement.PARTY, 0, "toggle", null) 
+		{
+			protected boolean execute(Player player, PlayerSession session, String[] args) 
+			{
+				boolean enabled = togglePartyChat(session);
 				
 				if(enabled) 
 				{
@@ -880,8 +2202,34 @@ public class ChatPartyPlugin extends JavaPlugin
 				
 				return true;
 			}
-			
+		});
+	}
+	
+	private void addCommand(PartyCommand command) 
+	{
+		partyCommands.put(command.name, command);
+		commandNames.add(command.name);
+	}
+	
+	public List<String> onTabComplete(CommandSender sender, Command cmd, String alias, String[] args) 
+	{
+		if(!(sender instanceof Player) || !cmd.getName().equalsIgnoreCase(TEXT_PARTY) || args.length == 0) return null;
+		
+		Player player = (Player) sender;
+		List<String> completions = new ArrayList<String>();
+		
+		if(args.length == 1) 
+		{
+			for(String name : commandNames.complete(args[0], COMPLETION_LIMIT)) 
+			{
+				if(player.hasPermission(partyCommands.get(name).permission)) completions.add(name);
+			}
+			return completions;
 		}
-		return false;
+		
+		PartyCommand command = partyCommands.get(args[0].toLowerCase());
+		if(command == null || !player.hasPermission(command.permission)) return completions;
+		
+		return command.complete(player, getSession(player), args);
 	}
 }
@@ -0,0 +1,122 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+//bounded player id <-> name cache, filled on join and from the names stored by the backend
+//lookups that miss the cache go to the storage on an async task and report back on the main thread
+public class IdentityCache
+{
+	private final ChatPartyPlugin plugin;
+	private final PartyStorage storage;
+	private final int capacity;
+	
+	//player id -> name in access order, lower case name -> player id
+	private final LinkedHashMap<String, String> names;
+	private final HashMap<String, String> ids;
+	
+	public IdentityCache(ChatPartyPlugin plugin, PartyStorage storage, int capacity)
+	{
+		this.plugin = plugin;
+		this.storage = storage;
+		this.capacity = Math.max(capacity, 16);
+		
+		names = new LinkedHashMap<String, String>(16, 0.75f, true);
+		ids = new HashMap<String, String>();
+	}
+	
+	public synchronized void remember(String playerId, String playerName)
+	{
+		String previous = names.put(playerId, playerName);
+		if(previous != null) ids.remove(previous.toLowerCase());
+		
+		//a name can move to another account, the newest owner wins
+		String otherId = ids.put(playerName.toLowerCase(), playerId);
+		if(otherId != null && !otherId.equals(playerId)) names.remove(otherId);
+		
+		if(names.size() > capacity)
+		{
+			Iterator<Map.Entry<String, String>> iterator = names.entrySet().iterator();
+			Map.Entry<String, String> eldest = iterator.next();
+			ids.remove(eldest.getValue().toLowerCase());
+			iterator.remove();
+		}
+	}
+	
+	public synchronized String getName(String playerId)
+	{
+		return names.get(playerId);
+	}
+	
+	public synchronized String getId(String playerName)
+	{
+		String playerId = ids.get(playerName.toLowerCase());
+		//touch the entry so names that are looked up stay cached
+		if(playerId != null) names.get(playerId);
+		return playerId;
+	}
+	
+	//calls back on the main thread with the id or null if the name was never seen
+	public void resolve(final String playerName, final Callback callback)
+	{
+		String cached = getId(playerName);
+		if(cached != null)
+		{
+			callback.resolved(cached);
+			return;
+		}
+		
+		plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable()
+		{
+			public void run()
+			{
+				String playerId = null;
+				try
+				{
+					playerId = storage.loadPlayerId(playerName);
+				}
+				catch(StorageException e)
+				{
+					plugin.getLogger().log(Level.WARNING, e.getMessage(), e);
+				}
+				
+				final String result = playerId;
+				plugin.getServer().getScheduler().runTask(plugin, new Runnable()
+				{
+					public void run()
+					{
+						if(result != null) remember(result, playerName);
+						callback.resolved(result);
+					}
+				});
+			}
+		});
+	}
+	
+	public interface Callback
+	{
+		public void resolved(String playerId);
+	}
+}
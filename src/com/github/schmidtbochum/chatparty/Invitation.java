@@ -0,0 +1,46 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+//a pending invitation of an online player, see PlayerSession.invitations and InvitationWheel
+public class Invitation
+{
+	public final PlayerSession session;
+	public final String partyName;
+	public final String inviterName;
+	
+	//position in the timing wheel, only touched by InvitationWheel
+	long rounds;
+	int slot = -1;
+	Invitation previous;
+	Invitation next;
+	
+	public Invitation(PlayerSession session, String partyName, String inviterName)
+	{
+		this.session = session;
+		this.partyName = partyName;
+		this.inviterName = inviterName;
+	}
+	
+	public boolean isScheduled()
+	{
+		return slot >= 0;
+	}
+}
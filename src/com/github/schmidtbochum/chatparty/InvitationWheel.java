@@ -0,0 +1,107 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+//hashed timing wheel for invitation expiry, runs once per second on the main thread
+//every slot holds a doubly linked list of the invitations due in it, so scheduling and
+//cancelling are O(1) and a turn only looks at the invitations of the current slot
+//timeouts longer than one revolution wait the remaining rounds in their slot
+public class InvitationWheel implements Runnable
+{
+	private final ChatPartyPlugin plugin;
+	private final Invitation[] slots;
+	private final int mask;
+	private int cursor;
+	private int size;
+	
+	//slots is rounded up to a power of two
+	public InvitationWheel(ChatPartyPlugin plugin, int slots)
+	{
+		this.plugin = plugin;
+		
+		int length = 1;
+		while(length < slots) length <<= 1;
+		this.slots = new Invitation[length];
+		mask = length - 1;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	//expires the invitation after the given number of seconds
+	public void schedule(Invitation invitation, long seconds)
+	{
+		cancel(invitation);
+		
+		long ticks = Math.max(1, seconds);
+		int slot = (int) ((cursor + ticks) & mask);
+		invitation.rounds = (ticks - 1) / slots.length;
+		invitation.slot = slot;
+		
+		invitation.previous = null;
+		invitation.next = slots[slot];
+		if(invitation.next != null) invitation.next.previous = invitation;
+		slots[slot] = invitation;
+		size++;
+	}
+	
+	public void cancel(Invitation invitation)
+	{
+		if(!invitation.isScheduled()) return;
+		
+		if(invitation.previous != null) 
+		{
+			invitation.previous.next = invitation.next;
+		}
+		else
+		{
+			slots[invitation.slot] = invitation.next;
+		}
+		if(invitation.next != null) invitation.next.previous = invitation.previous;
+		
+		invitation.previous = null;
+		invitation.next = null;
+		invitation.slot = -1;
+		size--;
+	}
+	
+	public void run()
+	{
+		cursor = (cursor + 1) & mask;
+		
+		Invitation invitation = slots[cursor];
+		while(invitation != null) 
+		{
+			Invitation next = invitation.next;
+			if(invitation.rounds > 0) 
+			{
+				invitation.rounds--;
+			}
+			else
+			{
+				cancel(invitation);
+				plugin.expireInvitation(invitation);
+			}
+			invitation = next;
+		}
+	}
+}
@@ -0,0 +1,518 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+//appends every membership change as a small line record to a journal file
+//records are written and fsynced once per commit (group commit) and the journal is
+//compacted into a snapshot once it grows too long; on startup the snapshot is loaded and
+//the journal replayed on top of it. Records are idempotent, so replaying a journal over a
+//newer snapshot after a crash during compaction is harmless.
+//  record: crc32 of the rest of the line as 8 hex digits, type, key and optional value, tab separated
+//a line without its newline is the torn end of an interrupted commit and is cut off before
+//new records are appended; lines with a wrong checksum are skipped. A commit that fails halfway
+//cuts the journal back to where it started, so the retry does not continue a torn line.
+//The state is guarded by the instance lock, the files by writeLock: a commit only takes the
+//records (and the snapshot) under the instance lock, so loads never wait for the disk.
+public class JournalStorage implements PartyStorage
+{
+	private static final String CHARSET = "UTF-8";
+	private static final String HEADER = "#ChatParty journal 1";
+	
+	//record types
+	private static final char CREATE = 'C';
+	private static final char DISBAND = 'D';
+	private static final char LEADER = 'L';
+	private static final char MEMBER = 'M';
+	private static final char REMOVE = 'R';
+	private static final char PLAYER = 'P';
+	private static final char UNSET_PLAYER = 'U';
+	private static final char SPY = 'S';
+	private static final char UNSET_SPY = 'X';
+	private static final char NAME = 'N';
+	
+	private final ChatPartyPlugin plugin;
+	private final File journalFile;
+	private final File snapshotFile;
+	private final int compactAfter;
+	private final Object writeLock = new Object();
+	
+	//current state, needed to diff party saves into single records and to write snapshots
+	//player id -> true for leaders, false for members, in join order
+	private final Map<String, LinkedHashMap<String, Boolean>> parties;
+	private final Map<String, String> players;
+	//player id -> last seen name and lower case name -> player id
+	private final Map<String, String> names;
+	private final Map<String, String> ids;
+	//spy id -> comma separated subscriptions
+	private final LinkedHashMap<String, String> spies;
+	
+	private final StringBuilder pending;
+	private FileOutputStream journal;
+	//records in the journal and in pending, a commit compacts once there are compactAfter
+	private int journalRecords;
+	
+	public JournalStorage(ChatPartyPlugin plugin, File journalFile, File snapshotFile, int compactAfter)
+	{
+		this.plugin = plugin;
+		this.journalFile = journalFile;
+		this.snapshotFile = snapshotFile;
+		this.compactAfter = compactAfter;
+		
+		parties = new LinkedHashMap<String, LinkedHashMap<String, Boolean>>();
+		players = new HashMap<String, String>();
+		names = new HashMap<String, String>();
+		ids = new HashMap<String, String>();
+		spies = new LinkedHashMap<String, String>();
+		pending = new StringBuilder();
+	}
+	
+	public synchronized void open() throws StorageException
+	{
+		try
+		{
+			if(SnapshotFile.recover(snapshotFile)) replay(snapshotFile, false);
+			if(journalFile.exists()) journalRecords = replay(journalFile, true);
+			
+			journal = new FileOutputStream(journalFile, true);
+			if(journal.getChannel().size() == 0) journal.write(header());
+		}
+		catch(IOException e)
+		{
+			throw new StorageException("Could not open " + journalFile, e);
+		}
+	}
+	
+	public void close()
+	{
+		synchronized(writeLock)
+		{
+			if(journal == null) return;
+			
+			try
+			{
+				journal.close();
+			}
+			catch(IOException e)
+			{
+				plugin.getLogger().warning("Could not close " + journalFile + ": " + e.getMessage());
+			}
+			journal = null;
+		}
+	}
+	
+	public synchronized List<Party> loadParties()
+	{
+		List<Party> result = new ArrayList<Party>();
+		for(String partyName : parties.keySet())
+		{
+			Party party = loadParty(partyName);
+			if(party != null) result.add(party);
+		}
+		return result;
+	}
+	
+	public synchronized List<String> loadPartyNames()
+	{
+		return new ArrayList<String>(parties.keySet());
+	}
+	
+	public synchronized Party loadParty(String partyName)
+	{
+		LinkedHashMap<String, Boolean> members = parties.get(partyName);
+		if(members == null) return null;
+		
+		Party party = new Party(partyName, plugin);
+		for(Map.Entry<String, Boolean> member : members.entrySet())
+		{
+			String playerName = names.get(member.getKey());
+			party.setRole(member.getKey(), playerName != null ? playerName : member.getKey(), member.getValue() ? PartyRole.LEADER : PartyRole.MEMBER);
+		}
+		return party.count(PartyRole.LEADER) > 0 ? party : null;
+	}
+	
+	public synchronized String loadPlayerParty(String playerId)
+	{
+		return players.get(playerId);
+	}
+	
+	public synchronized String loadPlayerId(String playerName)
+	{
+		return ids.get(playerName.toLowerCase());
+	}
+	
+	public synchronized Map<String, List<String>> loadSpies()
+	{
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for(Map.Entry<String, String> spy : spies.entrySet())
+		{
+			result.put(spy.getKey(), new ArrayList<String>(Arrays.asList(spy.getValue().split(","))));
+		}
+		return result;
+	}
+	
+	public synchronized void saveParty(String partyName, List<String> leaders, List<String> members)
+	{
+		LinkedHashMap<String, Boolean> previous = parties.get(partyName);
+		if(previous == null) 
+		{
+			append(CREATE, partyName, null);
+			previous = new LinkedHashMap<String, Boolean>();
+		}
+		
+		LinkedHashMap<String, Boolean> current = new LinkedHashMap<String, Boolean>();
+		for(String playerId : leaders) current.put(playerId, true);
+		for(String playerId : members) current.put(playerId, false);
+		
+		//only the difference to the last known state is written
+		for(String playerId : previous.keySet())
+		{
+			if(!current.containsKey(playerId)) append(REMOVE, partyName, playerId);
+		}
+		for(Map.Entry<String, Boolean> entry : current.entrySet())
+		{
+			if(!entry.getValue().equals(previous.get(entry.getKey()))) 
+			{
+				append(entry.getValue() ? LEADER : MEMBER, partyName, entry.getKey());
+			}
+		}
+		apply(CREATE, partyName, null);
+		parties.put(partyName, current);
+	}
+	
+	public synchronized void removeParty(String partyName)
+	{
+		record(DISBAND, partyName, null);
+	}
+	
+	public synchronized void savePlayer(String playerId, String partyName)
+	{
+		if(partyName.equals(players.get(playerId))) return;
+		record(PLAYER, playerId, partyName);
+	}
+	
+	public synchronized void removePlayer(String playerId)
+	{
+		if(!players.containsKey(playerId)) return;
+		record(UNSET_PLAYER, playerId, null);
+	}
+	
+	public synchronized void saveName(String playerId, String playerName)
+	{
+		if(playerName.equals(names.get(playerId))) return;
+		record(NAME, playerId, playerName);
+	}
+	
+	public synchronized void saveSpy(String playerId, List<String> targets)
+	{
+		if(targets.isEmpty())
+		{
+			if(spies.containsKey(playerId)) record(UNSET_SPY, playerId, null);
+			return;
+		}
+		
+		StringBuilder value = new StringBuilder();
+		for(String target : targets)
+		{
+			if(value.length() > 0) value.append(',');
+			value.append(target);
+		}
+		if(value.toString().equals(spies.get(playerId))) return;
+		record(SPY, playerId, value.toString());
+	}
+	
+	public void commit() throws StorageException
+	{
+		synchronized(writeLock)
+		{
+			String records;
+			byte[] snapshot = null;
+			int compacted = 0;
+			synchronized(this)
+			{
+				if(pending.length() == 0) return;
+				
+				records = pending.toString();
+				pending.setLength(0);
+				if(journalRecords >= compactAfter) 
+				{
+					//records that arrive while the snapshot is written go to the new journal
+					snapshot = snapshot();
+					compacted = journalRecords;
+					journalRecords = 0;
+				}
+			}
+			
+			long position = -1;
+			try
+			{
+				position = journal.getChannel().size();
+				journal.write(records.getBytes(CHARSET));
+				journal.getFD().sync();
+			}
+			catch(IOException e)
+			{
+				//the records are written again with the next commit, after a torn part of them is cut off;
+				//if that fails too, they start on a new line and only the torn line is skipped on replay
+				if(position >= 0 && !truncate(position)) records = "\n" + records;
+				synchronized(this)
+				{
+					pending.insert(0, records);
+					journalRecords += compacted;
+				}
+				throw new StorageException("Could not write to " + journalFile, e);
+			}
+			
+			if(snapshot != null) compact(snapshot, compacted);
+		}
+	}
+	
+	private boolean truncate(long position)
+	{
+		try
+		{
+			journal.getChannel().truncate(position);
+			return true;
+		}
+		catch(IOException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not cut " + journalFile + " back after a failed write", e);
+			return false;
+		}
+	}
+	
+	//replaces the snapshot and starts a new, empty journal; all records in the journal are in the snapshot
+	//the records are already durable in the journal, so a failure here does not fail the commit
+	private void compact(byte[] snapshot, int compacted)
+	{
+		try
+		{
+			SnapshotFile.write(snapshotFile, snapshot);
+			
+			journal.getChannel().truncate(0);
+			journal.write(header());
+		}
+		catch(IOException e)
+		{
+			//the journal is still complete, compacting is tried again with the next commit
+			synchronized(this)
+			{
+				journalRecords += compacted;
+			}
+			plugin.getLogger().log(Level.WARNING, "Could not compact " + journalFile, e);
+		}
+	}
+	
+	private byte[] header() throws IOException
+	{
+		return (HEADER + "\n").getBytes(CHARSET);
+	}
+	
+	//the current state as records
+	private byte[] snapshot()
+	{
+		try
+		{
+			ByteArrayOutputStream snapshot = new ByteArrayOutputStream(64 * 1024);
+			Writer writer = new OutputStreamWriter(snapshot, CHARSET);
+			StringBuilder line = new StringBuilder();
+			
+			writer.write(HEADER);
+			writer.write('\n');
+			for(Map.Entry<String, LinkedHashMap<String, Boolean>> party : parties.entrySet())
+			{
+				writeRecord(writer, line, CREATE, party.getKey(), null);
+				for(Map.Entry<String, Boolean> member : party.getValue().entrySet())
+				{
+					writeRecord(writer, line, member.getValue() ? LEADER : MEMBER, party.getKey(), member.getKey());
+				}
+			}
+			for(Map.Entry<String, String> player : players.entrySet())
+			{
+				writeRecord(writer, line, PLAYER, player.getKey(), player.getValue());
+			}
+			for(Map.Entry<String, String> name : names.entrySet())
+			{
+				writeRecord(writer, line, NAME, name.getKey(), name.getValue());
+			}
+			for(Map.Entry<String, String> spy : spies.entrySet())
+			{
+				writeRecord(writer, line, SPY, spy.getKey(), spy.getValue());
+			}
+			writer.flush();
+			return snapshot.toByteArray();
+		}
+		catch(IOException e)
+		{
+			//a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void record(char type, String key, String value)
+	{
+		append(type, key, value);
+		apply(type, key, value);
+	}
+	
+	private void append(char type, String key, String value)
+	{
+		pending.append(format(type, key, value)).append('\n');
+		journalRecords++;
+	}
+	
+	private static void writeRecord(Writer writer, StringBuilder line, char type, String key, String value) throws IOException
+	{
+		line.setLength(0);
+		line.append(format(type, key, value)).append('\n');
+		writer.write(line.toString());
+	}
+	
+	//one line without the newline, prefixed with its checksum
+	private static String format(char type, String key, String value)
+	{
+		StringBuilder line = new StringBuilder(key.length() + (value != null ? value.length() : 0) + 16);
+		line.append(type).append('\t').append(key);
+		if(value != null) line.append('\t').append(value);
+		
+		return checksum(line.toString()) + '\t' + line;
+	}
+	
+	//crc32 as 8 hex digits
+	private static String checksum(String data)
+	{
+		CRC32 crc = new CRC32();
+		try
+		{
+			crc.update(data.getBytes(CHARSET));
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		String checksum = Long.toHexString(crc.getValue());
+		return "00000000".substring(checksum.length()) + checksum;
+	}
+	
+	//a torn last line is cut off the file if truncate is set, so appended records start on a new line
+	private int replay(File file, boolean truncate) throws IOException
+	{
+		byte[] data;
+		RandomAccessFile access = new RandomAccessFile(file, truncate ? "rw" : "r");
+		try
+		{
+			data = new byte[(int) access.length()];
+			access.readFully(data);
+			
+			int end = data.length;
+			while(end > 0 && data[end - 1] != '\n') end--;
+			if(end < data.length) 
+			{
+				plugin.getLogger().warning("Dropping the incomplete last record of " + file.getName() + " (" + (data.length - end) + " bytes)");
+				if(truncate) access.setLength(end);
+			}
+			data = Arrays.copyOf(data, end);
+		}
+		finally
+		{
+			access.close();
+		}
+		
+		int records = 0;
+		for(String line : new String(data, CHARSET).split("\n"))
+		{
+			if(line.length() == 0 || line.charAt(0) == '#') continue;
+			
+			if(line.indexOf('\t') != 8 || !line.substring(0, 8).equals(checksum(line.substring(9)))) 
+			{
+				plugin.getLogger().warning("Skipping damaged record in " + file.getName() + ": " + line);
+				continue;
+			}
+			line = line.substring(9);
+			
+			String[] fields = line.split("\t");
+			if(fields.length < 2 || fields[0].length() != 1) 
+			{
+				plugin.getLogger().warning("Skipping damaged record in " + file.getName() + ": " + line);
+				continue;
+			}
+			apply(fields[0].charAt(0), fields[1], fields.length > 2 ? fields[2] : null);
+			records++;
+		}
+		return records;
+	}
+	
+	private void apply(char type, String key, String value)
+	{
+		switch(type)
+		{
+		case CREATE:
+			if(!parties.containsKey(key)) parties.put(key, new LinkedHashMap<String, Boolean>());
+			break;
+		case DISBAND:
+			parties.remove(key);
+			break;
+		case LEADER:
+		case MEMBER:
+			if(value == null) break;
+			apply(CREATE, key, null);
+			parties.get(key).put(value, type == LEADER);
+			break;
+		case REMOVE:
+			LinkedHashMap<String, Boolean> members = parties.get(key);
+			if(members != null && value != null) members.remove(value);
+			break;
+		case PLAYER:
+			if(value != null) players.put(key, value);
+			break;
+		case UNSET_PLAYER:
+			players.remove(key);
+			break;
+		case SPY:
+			spies.put(key, value != null ? value : SpyIndex.ALL);
+			break;
+		case UNSET_SPY:
+			spies.remove(key);
+			break;
+		case NAME:
+			if(value == null) break;
+			String previous = names.put(key, value);
+			if(previous != null) ids.remove(previous.toLowerCase());
+			ids.put(value.toLowerCase(), key);
+			break;
+		}
+	}
+}
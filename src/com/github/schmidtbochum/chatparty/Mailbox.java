@@ -0,0 +1,414 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//party messages for members that are offline, delivered when they log in again
+//the offline members of a party share one feed of its messages, so posting a message is one append
+//no matter how many members are away; every member remembers where the feed was when he left and
+//takes the messages from there on into his own box when he comes back. Feeds and boxes are bounded,
+//the oldest message is dropped when they are full and messages older than the expiry are dropped
+//on a schedule. mailbox.dat:
+//  header:  magic, version
+//  strings: see StringTable
+//  feeds:   count, then party name, sequence number of the next message, message count, then time + line each
+//  offline: count, then player id, party name, sequence number of the first message for him
+//  mail:    count, then player id, message count, then time + line each
+//all references are int indexes into the string table
+//called from the main thread and the async chat thread, everything is guarded by the instance lock
+public class Mailbox
+{
+	private static final int MAGIC = 0x43504D42;
+	private static final short VERSION = 1;
+	
+	private final File file;
+	private final int capacity;
+	private final long expireAfter;
+	private final boolean chat;
+	
+	//player id -> waiting messages, oldest first
+	private final HashMap<String, ArrayDeque<Mail>> boxes;
+	//lower case party name -> messages for its offline members
+	private final HashMap<String, Feed> feeds;
+	//player id of an offline member -> lower case party name, and the first message for him
+	private final HashMap<String, String> offlineParties;
+	private final HashMap<String, Long> cursors;
+	private boolean dirty;
+	
+	public Mailbox(File file, int capacity, long expireAfter, boolean chat)
+	{
+		this.file = file;
+		this.capacity = capacity;
+		this.expireAfter = expireAfter;
+		this.chat = chat;
+		
+		boxes = new HashMap<String, ArrayDeque<Mail>>();
+		feeds = new HashMap<String, Feed>();
+		offlineParties = new HashMap<String, String>();
+		cursors = new HashMap<String, Long>();
+	}
+	
+	//a member of the party went offline, party messages are kept for him from now on
+	public synchronized void leave(String playerId, String partyName)
+	{
+		forget(playerId);
+		
+		String key = partyName.toLowerCase();
+		Feed feed = feeds.get(key);
+		if(feed == null)
+		{
+			feed = new Feed();
+			feeds.put(key, feed);
+		}
+		feed.members.add(playerId);
+		offlineParties.put(playerId, key);
+		cursors.put(playerId, feed.next);
+		dirty = true;
+	}
+	
+	//the player came back or is not a member anymore; the party messages since he left move into
+	//his box, where they stay until they are taken
+	public synchronized void forget(String playerId)
+	{
+		String key = offlineParties.remove(playerId);
+		if(key == null) return;
+		
+		long cursor = cursors.remove(playerId);
+		Feed feed = feeds.get(key);
+		feed.members.remove(playerId);
+		if(feed.members.isEmpty()) feeds.remove(key);
+		
+		long first = feed.next - feed.mails.size();
+		List<Mail> mails = new ArrayList<Mail>(feed.mails).subList((int) (Math.max(cursor, first) - first), feed.mails.size());
+		if(!mails.isEmpty()) merge(playerId, mails);
+		dirty = true;
+	}
+	
+	//chat lines are only kept if mailbox.chat is set
+	public synchronized void post(String partyName, String line, boolean chatLine)
+	{
+		if(chatLine && !chat) return;
+		
+		Feed feed = feeds.get(partyName.toLowerCase());
+		if(feed == null) return;
+		
+		//nobody gets more than capacity messages, so the feed does not need to keep more
+		if(feed.mails.size() == capacity) feed.mails.pollFirst();
+		feed.mails.addLast(new Mail(System.currentTimeMillis(), line));
+		feed.next++;
+		dirty = true;
+	}
+	
+	//a message for a single offline player
+	public synchronized void send(String playerId, String line)
+	{
+		ArrayDeque<Mail> box = getBox(playerId);
+		if(box.size() == capacity) box.pollFirst();
+		box.addLast(new Mail(System.currentTimeMillis(), line));
+		dirty = true;
+	}
+	
+	//the party messages of an offline member only count after forget()
+	public synchronized boolean hasMail(String playerId)
+	{
+		return boxes.containsKey(playerId);
+	}
+	
+	//removes and returns the waiting messages of the player, oldest first; null if there are none
+	public synchronized List<Mail> take(String playerId)
+	{
+		ArrayDeque<Mail> box = boxes.remove(playerId);
+		if(box == null) return null;
+		
+		dirty = true;
+		return new ArrayList<Mail>(box);
+	}
+	
+	//puts messages that could not be delivered back in front of the ones that arrived meanwhile
+	public synchronized void restore(String playerId, List<Mail> mails)
+	{
+		ArrayDeque<Mail> box = getBox(playerId);
+		for(int i = mails.size() - 1; i >= 0 && box.size() < capacity; i--)
+		{
+			box.addFirst(mails.get(i));
+		}
+		if(box.isEmpty()) boxes.remove(playerId);
+		dirty = true;
+	}
+	
+	public synchronized void expire()
+	{
+		long oldest = System.currentTimeMillis() - expireAfter;
+		Iterator<ArrayDeque<Mail>> iterator = boxes.values().iterator();
+		while(iterator.hasNext())
+		{
+			ArrayDeque<Mail> box = iterator.next();
+			if(dropOlder(box, oldest) && box.isEmpty()) iterator.remove();
+		}
+		//the sequence numbers stay, the cursors of the members still fit
+		for(Feed feed : feeds.values())
+		{
+			dropOlder(feed.mails, oldest);
+		}
+	}
+	
+	private boolean dropOlder(ArrayDeque<Mail> mails, long oldest)
+	{
+		boolean dropped = false;
+		while(!mails.isEmpty() && mails.peekFirst().time < oldest)
+		{
+			mails.pollFirst();
+			dropped = true;
+		}
+		if(dropped) dirty = true;
+		return dropped;
+	}
+	
+	private ArrayDeque<Mail> getBox(String playerId)
+	{
+		ArrayDeque<Mail> box = boxes.get(playerId);
+		if(box == null)
+		{
+			box = new ArrayDeque<Mail>();
+			boxes.put(playerId, box);
+		}
+		return box;
+	}
+	
+	//adds messages to the box in the order they were sent, keeping the newest ones if it is full
+	private void merge(String playerId, List<Mail> mails)
+	{
+		ArrayDeque<Mail> box = getBox(playerId);
+		ArrayList<Mail> merged = new ArrayList<Mail>(box.size() + mails.size());
+		Iterator<Mail> boxMails = box.iterator();
+		Mail next = boxMails.hasNext() ? boxMails.next() : null;
+		for(Mail mail : mails)
+		{
+			while(next != null && next.time <= mail.time)
+			{
+				merged.add(next);
+				next = boxMails.hasNext() ? boxMails.next() : null;
+			}
+			merged.add(mail);
+		}
+		while(next != null)
+		{
+			merged.add(next);
+			next = boxMails.hasNext() ? boxMails.next() : null;
+		}
+		
+		box.clear();
+		box.addAll(merged.subList(Math.max(0, merged.size() - capacity), merged.size()));
+	}
+	
+	public synchronized void load() throws IOException
+	{
+		if(!SnapshotFile.recover(file)) return;
+		
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+			read(buffer);
+		}
+		catch(RuntimeException e)
+		{
+			//a truncated file runs out of bytes, a damaged one has indexes outside the string table
+			boxes.clear();
+			feeds.clear();
+			offlineParties.clear();
+			cursors.clear();
+			throw new IOException(file + " is damaged", e);
+		}
+		finally
+		{
+			in.close();
+		}
+		expire();
+	}
+	
+	//the snapshot is taken under the lock, the file is written outside of it
+	public void save() throws IOException
+	{
+		byte[] data;
+		synchronized(this)
+		{
+			if(!dirty) return;
+			
+			data = write();
+			dirty = false;
+		}
+		
+		synchronized(file)
+		{
+			try
+			{
+				SnapshotFile.write(file, data);
+			}
+			catch(IOException e)
+			{
+				synchronized(this)
+				{
+					dirty = true;
+				}
+				throw e;
+			}
+		}
+	}
+	
+	private void read(ByteBuffer buffer) throws IOException
+	{
+		if(buffer.getInt() != MAGIC) throw new IOException(file + " is not a ChatParty mailbox");
+		short version = buffer.getShort();
+		if(version != VERSION) throw new IOException(file + " has the unknown version " + version);
+		
+		String[] strings = StringTable.read(buffer);
+		
+		int count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			Feed feed = new Feed();
+			feeds.put(strings[buffer.getInt()], feed);
+			feed.next = buffer.getLong();
+			int size = buffer.getInt();
+			for(int j = 0; j < size; j++)
+			{
+				long time = buffer.getLong();
+				feed.mails.addLast(new Mail(time, strings[buffer.getInt()]));
+			}
+		}
+		
+		count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			String playerId = strings[buffer.getInt()];
+			String key = strings[buffer.getInt()];
+			long cursor = buffer.getLong();
+			
+			Feed feed = feeds.get(key);
+			if(feed == null) throw new IOException(file + " has no messages for the party " + key);
+			feed.members.add(playerId);
+			offlineParties.put(playerId, key);
+			cursors.put(playerId, cursor);
+		}
+		
+		count = buffer.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			ArrayDeque<Mail> box = getBox(strings[buffer.getInt()]);
+			int size = buffer.getInt();
+			for(int j = 0; j < size; j++)
+			{
+				long time = buffer.getLong();
+				box.addLast(new Mail(time, strings[buffer.getInt()]));
+			}
+		}
+		dirty = false;
+	}
+	
+	private byte[] write() throws IOException
+	{
+		StringTable table = new StringTable();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(16 * 1024);
+		DataOutputStream out = new DataOutputStream(body);
+		
+		out.writeInt(feeds.size());
+		for(Map.Entry<String, Feed> feed : feeds.entrySet())
+		{
+			out.writeInt(table.index(feed.getKey()));
+			out.writeLong(feed.getValue().next);
+			writeMails(out, table, feed.getValue().mails);
+		}
+		
+		out.writeInt(offlineParties.size());
+		for(Map.Entry<String, String> offline : offlineParties.entrySet())
+		{
+			out.writeInt(table.index(offline.getKey()));
+			out.writeInt(table.index(offline.getValue()));
+			out.writeLong(cursors.get(offline.getKey()));
+		}
+		
+		out.writeInt(boxes.size());
+		for(Map.Entry<String, ArrayDeque<Mail>> box : boxes.entrySet())
+		{
+			out.writeInt(table.index(box.getKey()));
+			writeMails(out, table, box.getValue());
+		}
+		out.flush();
+		
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream(body.size() + table.size() * 48 + 16);
+		DataOutputStream header = new DataOutputStream(snapshot);
+		header.writeInt(MAGIC);
+		header.writeShort(VERSION);
+		table.write(header);
+		header.flush();
+		body.writeTo(snapshot);
+		return snapshot.toByteArray();
+	}
+	
+	private static void writeMails(DataOutputStream out, StringTable table, ArrayDeque<Mail> mails) throws IOException
+	{
+		out.writeInt(mails.size());
+		for(Mail mail : mails)
+		{
+			out.writeLong(mail.time);
+			out.writeInt(table.index(mail.line));
+		}
+	}
+	
+	//the messages of one party while some of its members are offline
+	private static class Feed
+	{
+		final ArrayDeque<Mail> mails = new ArrayDeque<Mail>();
+		final Set<String> members = new HashSet<String>();
+		//sequence number of the next message, the first one kept is next - mails.size()
+		long next;
+	}
+	
+	public static class Mail
+	{
+		public final long time;
+		public final String line;
+		
+		Mail(long time, String line)
+		{
+			this.time = time;
+			this.line = line;
+		}
+	}
+}
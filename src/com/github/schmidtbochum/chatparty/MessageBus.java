@@ -0,0 +1,42 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.IOException;
+import java.util.List;
+
+//relays party chat, system messages and membership changes between the servers of a network
+//publish() is safe to call from any thread; received batches never contain the node's own messages
+public interface MessageBus
+{
+	public void start(Listener listener) throws IOException;
+	
+	public void stop();
+	
+	public void publish(BusMessage message);
+	
+	public long getDropped();
+	
+	public interface Listener
+	{
+		//called on the bus thread
+		public void received(List<BusMessage> messages);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.entity.Player;
+
+//queues outbound party, spy and system messages per recipient and sends them once per tick
+//each recipient keeps at most maxQueue lines, the oldest line is dropped when a burst overflows it
+//a tick sends at most perTickBudget lines; recipients wait in a round-robin queue, so the rest
+//of a large fan-out goes out on the following ticks in the same order
+public class MessageDispatcher implements Runnable
+{
+	private final boolean enabled;
+	private final int perTickBudget;
+	private final int maxQueue;
+	
+	private final ConcurrentHashMap<Player, Outbox> outboxes;
+	private final ConcurrentLinkedQueue<Outbox> ready;
+	private final AtomicLong dropped;
+	
+	public MessageDispatcher(boolean enabled, int perTickBudget, int maxQueue)
+	{
+		this.enabled = enabled;
+		this.perTickBudget = perTickBudget;
+		this.maxQueue = maxQueue;
+		
+		outboxes = new ConcurrentHashMap<Player, Outbox>();
+		ready = new ConcurrentLinkedQueue<Outbox>();
+		dropped = new AtomicLong();
+	}
+	
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+	
+	public int getMaxQueue()
+	{
+		return maxQueue;
+	}
+	
+	//safe to call from the async chat thread
+	public void send(Player player, String message)
+	{
+		if(!enabled)
+		{
+			player.sendMessage(message);
+			return;
+		}
+		
+		Outbox outbox = outboxes.get(player);
+		if(outbox == null)
+		{
+			Outbox created = new Outbox(player);
+			outbox = outboxes.putIfAbsent(player, created);
+			if(outbox == null) outbox = created;
+		}
+		
+		outbox.lines.add(message);
+		if(outbox.size.incrementAndGet() > maxQueue && outbox.lines.poll() != null)
+		{
+			outbox.size.decrementAndGet();
+			dropped.incrementAndGet();
+		}
+		
+		if(outbox.scheduled.compareAndSet(false, true)) ready.add(outbox);
+	}
+	
+	//drops everything that is still queued for a player who left
+	public void remove(Player player)
+	{
+		Outbox outbox = outboxes.remove(player);
+		if(outbox != null) outbox.lines.clear();
+	}
+	
+	//runs every tick on the main thread
+	public void run()
+	{
+		int budget = perTickBudget;
+		
+		//every outbox is visited at most once per tick, outboxes that get new lines meanwhile wait for the next one
+		int visits = ready.size();
+		while(budget > 0 && visits-- > 0)
+		{
+			Outbox outbox = ready.poll();
+			if(outbox == null) break;
+			
+			if(!outbox.player.isOnline())
+			{
+				outboxes.remove(outbox.player, outbox);
+				outbox.lines.clear();
+				continue;
+			}
+			
+			int count = Math.min(budget, Math.max(1, outbox.size.get()));
+			String[] lines = new String[count];
+			int taken = 0;
+			while(taken < count)
+			{
+				String line = outbox.lines.poll();
+				if(line == null) break;
+				lines[taken++] = line;
+			}
+			outbox.size.addAndGet(-taken);
+			budget -= taken;
+			
+			if(taken == 1)
+			{
+				outbox.player.sendMessage(lines[0]);
+			}
+			else if(taken > 1)
+			{
+				if(taken < count)
+				{
+					String[] shorter = new String[taken];
+					System.arraycopy(lines, 0, shorter, 0, taken);
+					lines = shorter;
+				}
+				outbox.player.sendMessage(lines);
+			}
+			
+			//back to the end of the queue if lines are left, otherwise unschedule and catch a racing send
+			if(!outbox.lines.isEmpty())
+			{
+				ready.add(outbox);
+			}
+			else
+			{
+				outbox.scheduled.set(false);
+				if(!outbox.lines.isEmpty() && outbox.scheduled.compareAndSet(false, true)) ready.add(outbox);
+			}
+		}
+	}
+	
+	//sends everything that is still queued, ignoring the budget
+	public void flush()
+	{
+		for(Outbox outbox : outboxes.values())
+		{
+			String line;
+			while((line = outbox.lines.poll()) != null)
+			{
+				if(outbox.player.isOnline()) outbox.player.sendMessage(line);
+			}
+			outbox.size.set(0);
+		}
+		outboxes.clear();
+		ready.clear();
+	}
+	
+	private static class Outbox
+	{
+		final Player player;
+		final ConcurrentLinkedQueue<String> lines = new ConcurrentLinkedQueue<String>();
+		final AtomicInteger size = new AtomicInteger();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		
+		Outbox(Player player)
+		{
+			this.player = player;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.entity.Player;
+
+//a message format split once into literal text and placeholders
+//rendering is a single pass over the parts into a reused per-thread builder
+public class MessageTemplate
+{
+	public enum Placeholder
+	{
+		DISPLAYNAME, NAME, PARTYNAME, SHORTNAME, MESSAGE;
+		
+		final String token = "{" + name() + "}";
+	}
+	
+	private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>()
+	{
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(128);
+		}
+	};
+	
+	//parts[i] is either a literal String or a Placeholder
+	private final Object[] parts;
+	
+	private MessageTemplate(Object[] parts)
+	{
+		this.parts = parts;
+	}
+	
+	public static MessageTemplate compile(String format)
+	{
+		List<Object> parts = new ArrayList<Object>();
+		StringBuilder literal = new StringBuilder();
+		
+		int i = 0;
+		while(i < format.length())
+		{
+			Placeholder placeholder = format.charAt(i) == '{' ? match(format, i) : null;
+			
+			if(placeholder == null)
+			{
+				literal.append(format.charAt(i));
+				i++;
+				continue;
+			}
+			if(literal.length() > 0) 
+			{
+				parts.add(literal.toString());
+				literal.setLength(0);
+			}
+			parts.add(placeholder);
+			i += placeholder.token.length();
+		}
+		if(literal.length() > 0) parts.add(literal.toString());
+		
+		return new MessageTemplate(parts.toArray());
+	}
+	
+	private static Placeholder match(String format, int index)
+	{
+		for(Placeholder placeholder : Placeholder.values())
+		{
+			if(format.startsWith(placeholder.token, index)) return placeholder;
+		}
+		return null;
+	}
+	
+	//sender may be null for system messages
+	public String render(Party party, Player sender, String message)
+	{
+		if(sender == null) return render(party, null, null, message);
+		return render(party, sender.getName(), sender.getDisplayName(), message);
+	}
+	
+	//for senders that are not online on this server
+	public String render(Party party, String senderName, String displayName, String message)
+	{
+		StringBuilder builder = BUILDER.get();
+		builder.setLength(0);
+		
+		for(Object part : parts)
+		{
+			if(part instanceof String)
+			{
+				builder.append((String) part);
+				continue;
+			}
+			switch((Placeholder) part)
+			{
+			case DISPLAYNAME:
+				if(displayName != null) builder.append(displayName);
+				break;
+			case NAME:
+				if(senderName != null) builder.append(senderName);
+				break;
+			case PARTYNAME:
+				builder.append(party.name);
+				break;
+			case SHORTNAME:
+				builder.append(party.shortName);
+				break;
+			case MESSAGE:
+				builder.append(message);
+				break;
+			}
+		}
+		return builder.toString();
+	}
+}
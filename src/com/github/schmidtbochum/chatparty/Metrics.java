@@ -0,0 +1,150 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//counters and latency histograms of the hot paths
+//everything is recorded with atomic adds only, so the async chat thread never waits for the main thread
+public class Metrics
+{
+	public final AtomicLong messagesRouted = new AtomicLong();
+	public final AtomicLong recipients = new AtomicLong();
+	public final AtomicLong spyDeliveries = new AtomicLong();
+	public final AtomicLong rateLimited = new AtomicLong();
+	public final AtomicLong busReceived = new AtomicLong();
+	
+	public final Histogram chat = new Histogram();
+	public final Histogram command = new Histogram();
+	public final Histogram flush = new Histogram();
+	
+	private final long started = System.currentTimeMillis();
+	
+	//one line per value, shared by /party stats and the dump file
+	public List<String> report(ChatPartyPlugin plugin)
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add("uptime: " + (System.currentTimeMillis() - started) / 1000L + "s");
+		lines.add("messages routed: " + messagesRouted.get());
+		lines.add("recipients: " + recipients.get());
+		lines.add("spy deliveries: " + spyDeliveries.get());
+		lines.add("rate limited: " + rateLimited.get());
+		lines.add("dispatcher dropped: " + plugin.getDispatcher().getDropped());
+		lines.add("audit dropped: " + plugin.getAuditLog().getDropped());
+		if(plugin.getBus() != null) 
+		{
+			lines.add("bus received: " + busReceived.get());
+			lines.add("bus dropped: " + plugin.getBus().getDropped());
+		}
+		lines.add("chat: " + chat);
+		lines.add("command: " + command);
+		lines.add("flush: " + flush);
+		return lines;
+	}
+	
+	//appends a timestamped report to the file, called from an async task
+	public void dump(ChatPartyPlugin plugin, File file) throws IOException
+	{
+		String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+		
+		Writer writer = new FileWriter(file, true);
+		try
+		{
+			for(String line : report(plugin))
+			{
+				writer.write(time + " " + line + "\n");
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+	
+	//latencies in power of two nanosecond buckets; bucket i holds values below 2^i ns
+	public static class Histogram
+	{
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		public void record(long nanos)
+		{
+			if(nanos < 0) nanos = 0;
+			
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+			
+			long current = max.get();
+			while(nanos > current && !max.compareAndSet(current, nanos))
+			{
+				current = max.get();
+			}
+		}
+		
+		public long getCount()
+		{
+			return count.get();
+		}
+		
+		//upper bound of the bucket that contains the percentile, in nanoseconds
+		public long percentile(double percentile)
+		{
+			long total = 0;
+			for(int i = 0; i < 64; i++)
+			{
+				total += buckets.get(i);
+			}
+			if(total == 0) return 0;
+			
+			long rank = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for(int i = 0; i < 64; i++)
+			{
+				seen += buckets.get(i);
+				if(seen >= rank) return i == 63 ? Long.MAX_VALUE : 1L << i;
+			}
+			return max.get();
+		}
+		
+		public String toString()
+		{
+			long count = this.count.get();
+			long mean = count == 0 ? 0 : total.get() / count;
+			return count + " calls, mean " + micros(mean) + ", p50 < " + micros(percentile(50)) + ", p99 < " + micros(percentile(99)) + ", max " + micros(max.get());
+		}
+		
+		private static String micros(long nanos)
+		{
+			return String.format("%.1fus", nanos / 1000.0);
+		}
+	}
+}
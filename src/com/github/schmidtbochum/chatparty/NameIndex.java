@@ -0,0 +1,75 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//case-insensitive sorted name set for tab completion
+//a prefix lookup is a tree search plus a walk over the matches, so it does not grow with the number of names
+//main thread only
+public class NameIndex
+{
+	private final TreeMap<String, String> names;
+	
+	public NameIndex()
+	{
+		names = new TreeMap<String, String>();
+	}
+	
+	public void add(String name)
+	{
+		names.put(name.toLowerCase(), name);
+	}
+	
+	public void remove(String name)
+	{
+		names.remove(name.toLowerCase());
+	}
+	
+	public List<String> complete(String prefix, int limit)
+	{
+		String key = prefix.toLowerCase();
+		List<String> result = new ArrayList<String>();
+		
+		for(Map.Entry<String, String> entry : names.tailMap(key, true).entrySet())
+		{
+			if(!entry.getKey().startsWith(key) || result.size() >= limit) break;
+			result.add(entry.getValue());
+		}
+		return result;
+	}
+	
+	//the same lookup over a short list that is not worth indexing, like the members of one party
+	public static List<String> complete(List<String> candidates, String prefix, int limit)
+	{
+		String key = prefix.toLowerCase();
+		List<String> result = new ArrayList<String>();
+		
+		for(String candidate : candidates)
+		{
+			if(result.size() >= limit) break;
+			if(candidate.toLowerCase().startsWith(key)) result.add(candidate);
+		}
+		return result;
+	}
+}
@@ -20,6 +20,12 @@
 package com.github.schmidtbochum.chatparty;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
@@ -30,10 +36,25 @@ public class Party
 	
 	public String name;
 	public String shortName;
-	public ArrayList<String> members;
-	public ArrayList<String> leaders;
 	
-	public ArrayList<Player> activePlayers;
+	//player id -> member, in join order; a promotion keeps the position
+	//ids are uuids, members stored before player ids keep their name as id until they join again
+	private final LinkedHashMap<String, Member> roles;
+	//lower case name -> player id
+	private final HashMap<String, String> ids;
+	private final int[] roleCounts;
+	
+	//read by the async chat thread without locking, every change publishes a new copy
+	public CopyOnWriteArrayList<Player> activePlayers;
+	
+	//party chat rate limit, see RateLimiter
+	public final AtomicLong chatBucket = RateLimiter.newBucket();
+	
+	//last lines sent to the party, for /party history and the replay on join
+	public final ChatHistory history;
+	
+	//last time the party was loaded, used or left by its last online member
+	long lastUsed;
 	
 	public Party(String name, ChatPartyPlugin plugin)
 	{
@@ -42,31 +63,184 @@ public class Party
 		this.name = name;
 		this.shortName = name.substring(0, 3);
 		
-		members = new ArrayList<String>();
-		leaders = new ArrayList<String>();
-		activePlayers = new ArrayList<Player>();
+		roles = new LinkedHashMap<String, Member>();
+		ids = new HashMap<String, String>();
+		roleCounts = new int[PartyRole.values().length];
+		activePlayers = new CopyOnWriteArrayList<Player>();
+		history = new ChatHistory(plugin.config_historySize);
 	}
 	
-	public void sendPlayerMessage(Player sender, String message) 
+	//null if the player is not in the party
+	public PartyRole getRole(String playerId) 
 	{
-		for(Player player : activePlayers) 
+		Member member = roles.get(playerId);
+		return member == null ? null : member.role;
+	}
+	
+	public boolean isMember(String playerId) 
+	{
+		return roles.containsKey(playerId);
+	}
+	
+	public boolean isLeader(String playerId) 
+	{
+		return getRole(playerId) == PartyRole.LEADER;
+	}
+	
+	//last known name of a member, or null if the player is not in the party
+	public String getMemberName(String playerId) 
+	{
+		Member member = roles.get(playerId);
+		return member == null ? null : member.name;
+	}
+	
+	//id of the member with that name (ignoring case), or null
+	public String getMemberId(String playerName) 
+	{
+		return ids.get(playerName.toLowerCase());
+	}
+	
+	//adds the player or changes his role and name
+	public void setRole(String playerId, String playerName, PartyRole role) 
+	{
+		Member member = roles.get(playerId);
+		if(member == null) 
 		{
-			if(player.hasPermission("chatparty.user")) 
-			{
-				String formattedMessage = plugin.config_chatFormat.replace("{DISPLAYNAME}", sender.getDisplayName()).replace("{PARTYNAME}", this.name).replace("{MESSAGE}", message);
-				
-				player.sendMessage(formattedMessage);
-			}
+			member = new Member(playerName, role);
+			roles.put(playerId, member);
+		}
+		else
+		{
+			roleCounts[member.role.ordinal()]--;
+			ids.remove(member.name.toLowerCase());
+			member.name = playerName;
+			member.role = role;
 		}
+		ids.put(playerName.toLowerCase(), playerId);
+		roleCounts[role.ordinal()]++;
+	}
+	
+	public boolean removeMember(String playerId) 
+	{
+		Member member = roles.remove(playerId);
+		if(member == null) return false;
+		
+		ids.remove(member.name.toLowerCase());
+		roleCounts[member.role.ordinal()]--;
+		return true;
+	}
+	
+	//moves a member to a new id without changing his position
+	public void changeId(String oldId, String newId, String playerName) 
+	{
+		if(!roles.containsKey(oldId)) return;
+		
+		List<Map.Entry<String, Member>> entries = new ArrayList<Map.Entry<String, Member>>(roles.entrySet());
+		roles.clear();
+		for(Map.Entry<String, Member> entry : entries) 
+		{
+			roles.put(entry.getKey().equals(oldId) ? newId : entry.getKey(), entry.getValue());
+		}
+		
+		Member member = roles.get(newId);
+		ids.remove(member.name.toLowerCase());
+		member.name = playerName;
+		ids.put(playerName.toLowerCase(), newId);
+	}
+	
+	public int count(PartyRole role) 
+	{
+		return roleCounts[role.ordinal()];
+	}
+	
+	public int size() 
+	{
+		return roles.size();
+	}
+	
+	//ids of the players with the role in join order
+	public List<String> getMembers(PartyRole role) 
+	{
+		List<String> result = new ArrayList<String>(roleCounts[role.ordinal()]);
+		for(Map.Entry<String, Member> entry : roles.entrySet()) 
+		{
+			if(entry.getValue().role == role) result.add(entry.getKey());
+		}
+		return result;
+	}
+	
+	public List<String> getMemberIds() 
+	{
+		return new ArrayList<String>(roles.keySet());
+	}
+	
+	//names of the players with the role in join order
+	public List<String> getMemberNames(PartyRole role) 
+	{
+		List<String> result = new ArrayList<String>(roleCounts[role.ordinal()]);
+		for(Member member : roles.values()) 
+		{
+			if(member.role == role) result.add(member.name);
+		}
+		return result;
+	}
+	
+	public void sendPlayerMessage(Player sender, String message) 
+	{
+		String formattedMessage = plugin.config_chatFormat.render(this, sender, message);
+		
+		deliver(formattedMessage, true);
+		plugin.relay(BusMessage.chat(name, sender.getName(), sender.getDisplayName(), message));
 	}
 	public void sendPartyMessage(String message) 
 	{
+		String formattedMessage = plugin.partyMessageFormat.render(this, null, message);
+		
+		deliver(formattedMessage, false);
+		plugin.relay(BusMessage.system(name, message));
+	}
+	
+	//messages from other servers, they only go to the members on this one
+	public void receivePlayerMessage(String senderName, String displayName, String message) 
+	{
+		deliver(plugin.config_chatFormat.render(this, senderName, displayName, message), true);
+	}
+	public void receivePartyMessage(String message) 
+	{
+		deliver(plugin.partyMessageFormat.render(this, null, null, message), false);
+	}
+	
+	private void deliver(String formattedMessage, boolean chat) 
+	{
+		history.add(formattedMessage);
+		
+		Mailbox mailbox = plugin.getMailbox();
+		if(mailbox != null) mailbox.post(name, formattedMessage, chat);
+		
+		int recipients = 0;
 		for(Player player : activePlayers) 
 		{
-			if(player.hasPermission("chatparty.user")) 
+			//players that quit are still in older snapshots of the list
+			PlayerSession session = plugin.getSession(player);
+			if(session != null && session.userPermission) 
 			{
-				player.sendMessage(plugin.config_messageColor + "["+plugin.TEXT_PARTY+"] " + message);
+				plugin.getDispatcher().send(player, formattedMessage);
+				recipients++;
 			}
 		}
+		plugin.getMetrics().messagesRouted.incrementAndGet();
+		plugin.getMetrics().recipients.addAndGet(recipients);
+	}
+	
+	private static class Member
+	{
+		String name;
+		PartyRole role;
+		
+		Member(String name, PartyRole role)
+		{
+			this.name = name;
+			this.role = role;
+		}
 	}
 }
@@ -0,0 +1,107 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.entity.Player;
+
+//a /party subcommand; run() checks the conditions all subcommands share before execute() is called
+public abstract class PartyCommand
+{
+	public enum Requirement
+	{
+		NONE, NO_PARTY, PARTY, LEADER
+	}
+	
+	protected final ChatPartyPlugin plugin;
+	public final String name;
+	public final String permission;
+	public final Requirement requirement;
+	public final int arguments;
+	public final String usage;
+	private final String leaderAction;
+	
+	//arguments is the exact number of arguments after the name, -1 for any
+	//leaderAction completes "Only party leaders can ..." for commands that require a leader
+	public PartyCommand(ChatPartyPlugin plugin, String name, String permission, Requirement requirement, int arguments, String usage, String leaderAction)
+	{
+		this.plugin = plugin;
+		this.name = name;
+		this.permission = permission;
+		this.requirement = requirement;
+		this.arguments = arguments;
+		this.usage = usage;
+		this.leaderAction = leaderAction;
+	}
+	
+	public boolean run(Player player, PlayerSession session, String[] args)
+	{
+		if(!player.hasPermission(permission)) 
+		{
+			plugin.sendMessage(player, "You do not have access to that command.");
+			return true;
+		}
+		
+		//until the party is loaded the player would look like he was in none
+		if(requirement != Requirement.NONE && session.partyLoading) 
+		{
+			plugin.sendMessage(player, "Your "+plugin.TEXT_PARTY+" is still loading, try again in a moment.");
+			return true;
+		}
+		
+		if(requirement == Requirement.NO_PARTY && session.party != null) 
+		{
+			plugin.sendMessage(player, "You are already in a "+plugin.TEXT_PARTY+".");
+			return true;
+		}
+		
+		if((requirement == Requirement.PARTY || requirement == Requirement.LEADER) && session.party == null) 
+		{
+			plugin.sendMessage(player, "You are not in a "+plugin.TEXT_PARTY+".");
+			if(player.hasPermission("chatparty.leader")) plugin.sendMessage(player, "Create your own "+plugin.TEXT_PARTY+" with /"+plugin.TEXT_PARTY+" create <name>.");
+			return true;
+		}
+		
+		if(requirement == Requirement.LEADER && !session.leader) 
+		{
+			plugin.sendMessage(player, "Only "+plugin.TEXT_PARTY+" leaders can " + leaderAction + ".");
+			return true;
+		}
+		
+		if(arguments >= 0 && args.length - 1 != arguments) 
+		{
+			plugin.sendMessage(player, "Usage: /"+plugin.TEXT_PARTY+" " + usage);
+			return true;
+		}
+		
+		return execute(player, session, args);
+	}
+	
+	//args[0] is the name of the subcommand
+	protected abstract boolean execute(Player player, PlayerSession session, String[] args);
+	
+	//completions for the last argument, only called when the player has the permission
+	public List<String> complete(Player player, PlayerSession session, String[] args)
+	{
+		return new ArrayList<String>();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//in-memory cache of the loaded parties: party name -> party and player id -> party
+//parties are kept in access order, so eviction starts with the least recently used one
+//the player index is safe to read from the async chat thread, everything else runs on the main thread
+public class PartyRegistry
+{
+	private final LinkedHashMap<String, Party> parties;
+	private final ConcurrentHashMap<String, Party> playerParties;
+
+	public PartyRegistry()
+	{
+		parties = new LinkedHashMap<String, Party>(16, 0.75f, true);
+		playerParties = new ConcurrentHashMap<String, Party>();
+	}
+
+	public synchronized Party getParty(String name)
+	{
+		Party party = parties.get(name);
+		if(party != null) party.lastUsed = System.currentTimeMillis();
+		return party;
+	}
+
+	public Party getPlayerParty(String playerId)
+	{
+		return playerParties.get(playerId);
+	}
+
+	public synchronized int size()
+	{
+		return parties.size();
+	}
+
+	public synchronized void register(Party party)
+	{
+		party.lastUsed = System.currentTimeMillis();
+		parties.put(party.name, party);
+
+		for(String playerId : party.getMemberIds())
+		{
+			playerParties.put(playerId, party);
+		}
+	}
+
+	public synchronized void unregister(Party party)
+	{
+		if(parties.get(party.name) == party) parties.remove(party.name);
+
+		unindex(party);
+	}
+
+	public void addMember(Party party, String playerId)
+	{
+		playerParties.put(playerId, party);
+	}
+
+	public void removeMember(Party party, String playerId)
+	{
+		playerParties.remove(playerId, party);
+	}
+
+	//drops parties without online members that were idle for too long or exceed the size cap
+	//parties with unsaved changes stay until the persistence queue has written them
+	public synchronized int evict(int maxSize, long maxIdleMillis, PersistenceQueue persistence)
+	{
+		long idleSince = System.currentTimeMillis() - maxIdleMillis;
+		int evicted = 0;
+
+		Iterator<Party> iterator = parties.values().iterator();
+		while(iterator.hasNext())
+		{
+			Party party = iterator.next();
+
+			if(!party.activePlayers.isEmpty() || persistence.isPartyDirty(party.name)) continue;
+
+			if(parties.size() > maxSize || party.lastUsed < idleSince)
+			{
+				iterator.remove();
+				unindex(party);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	//drops least recently used parties until at most maxSize are left, called before a load
+	//stops at the first fit instead of scanning the whole cache; parties that had to stay
+	//move to the back, so the next call does not walk over them again
+	public synchronized int trim(int maxSize, PersistenceQueue persistence)
+	{
+		int evicted = 0;
+		List<String> kept = new ArrayList<String>();
+
+		Iterator<Party> iterator = parties.values().iterator();
+		while(parties.size() > maxSize && iterator.hasNext())
+		{
+			Party party = iterator.next();
+
+			if(!party.activePlayers.isEmpty() || persistence.isPartyDirty(party.name))
+			{
+				kept.add(party.name);
+				continue;
+			}
+
+			iterator.remove();
+			unindex(party);
+			evicted++;
+		}
+
+		//a plain get only moves the entry, lastUsed stays for the idle eviction
+		for(String name : kept)
+		{
+			parties.get(name);
+		}
+		return evicted;
+	}
+
+	private void unindex(Party party)
+	{
+		for(String playerId : party.getMemberIds())
+		{
+			playerParties.remove(playerId, party);
+		}
+	}
+}
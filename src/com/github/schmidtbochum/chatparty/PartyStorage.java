@@ -0,0 +1,65 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.List;
+import java.util.Map;
+
+//backend for parties, players, player names and spies
+//players are stored by id (the uuid, or the name for data from before player ids)
+//writes are batched by the PersistenceQueue and only become durable with commit()
+public interface PartyStorage
+{
+	public void open() throws StorageException;
+	
+	public void close();
+	
+	public List<Party> loadParties() throws StorageException;
+	
+	//names of all stored parties, without loading their members
+	public List<String> loadPartyNames() throws StorageException;
+	
+	//returns null if the party does not exist
+	public Party loadParty(String partyName) throws StorageException;
+	
+	//returns the name of the player's party or null
+	public String loadPlayerParty(String playerId) throws StorageException;
+	
+	//id of the player last seen with that name (ignoring case) or null
+	public String loadPlayerId(String playerName) throws StorageException;
+	
+	//spy id -> subscriptions, see SpyIndex
+	public Map<String, List<String>> loadSpies() throws StorageException;
+	
+	public void saveParty(String partyName, List<String> leaders, List<String> members) throws StorageException;
+	
+	public void removeParty(String partyName) throws StorageException;
+	
+	public void savePlayer(String playerId, String partyName) throws StorageException;
+	
+	public void removePlayer(String playerId) throws StorageException;
+	
+	public void saveName(String playerId, String playerName) throws StorageException;
+	
+	//an empty list removes the spy
+	public void saveSpy(String playerId, List<String> targets) throws StorageException;
+	
+	public void commit() throws StorageException;
+}
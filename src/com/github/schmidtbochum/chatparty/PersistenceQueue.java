@@ -0,0 +1,189 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+//collects dirty parties, players, player names and spies and writes them to the storage in one batch
+//marking is cheap and happens on the main thread, flush() runs on a background task
+//entries stay marked until the storage has committed them, so isPartyDirty() and isPlayerDirty()
+//keep returning true while a write is in flight and nothing reads the old stored state meanwhile
+public class PersistenceQueue implements Runnable
+{
+	private static final String REMOVED = "";
+	
+	private final ChatPartyPlugin plugin;
+	private final PartyStorage storage;
+	private final Object writeLock = new Object();
+	
+	private final ConcurrentHashMap<String, PartySnapshot> dirtyParties;
+	private final ConcurrentHashMap<String, String> dirtyPlayers;
+	private final ConcurrentHashMap<String, String> dirtyNames;
+	private final ConcurrentHashMap<String, List<String>> dirtySpies;
+	
+	public PersistenceQueue(ChatPartyPlugin plugin, PartyStorage storage)
+	{
+		this.plugin = plugin;
+		this.storage = storage;
+		
+		dirtyParties = new ConcurrentHashMap<String, PartySnapshot>();
+		dirtyPlayers = new ConcurrentHashMap<String, String>();
+		dirtyNames = new ConcurrentHashMap<String, String>();
+		dirtySpies = new ConcurrentHashMap<String, List<String>>();
+	}
+	
+	public PartyStorage getStorage()
+	{
+		return storage;
+	}
+	
+	public void markParty(Party party)
+	{
+		dirtyParties.put(party.name, new PartySnapshot(party.getMembers(PartyRole.LEADER), party.getMembers(PartyRole.MEMBER)));
+	}
+	
+	public void markPartyRemoved(String partyName)
+	{
+		dirtyParties.put(partyName, new PartySnapshot(null, null));
+	}
+	
+	public void markPlayer(String playerId, String partyName)
+	{
+		dirtyPlayers.put(playerId, partyName == null ? REMOVED : partyName);
+	}
+	
+	public void markName(String playerId, String playerName)
+	{
+		dirtyNames.put(playerId, playerName);
+	}
+	
+	public void markSpy(String playerId, List<String> targets)
+	{
+		dirtySpies.put(playerId, new ArrayList<String>(targets));
+	}
+	
+	public boolean isPartyDirty(String partyName)
+	{
+		return dirtyParties.containsKey(partyName);
+	}
+	
+	public boolean isPlayerDirty(String playerId)
+	{
+		return dirtyPlayers.containsKey(playerId);
+	}
+	
+	public boolean isDirty()
+	{
+		return !dirtyParties.isEmpty() || !dirtyPlayers.isEmpty() || !dirtyNames.isEmpty() || !dirtySpies.isEmpty();
+	}
+	
+	public void run()
+	{
+		flush();
+	}
+	
+	public void flush()
+	{
+		synchronized(writeLock)
+		{
+			if(!isDirty()) return;
+			
+			long start = System.nanoTime();
+			Map<String, PartySnapshot> parties = new HashMap<String, PartySnapshot>(dirtyParties);
+			Map<String, String> players = new HashMap<String, String>(dirtyPlayers);
+			Map<String, String> names = new HashMap<String, String>(dirtyNames);
+			Map<String, List<String>> spies = new HashMap<String, List<String>>(dirtySpies);
+			
+			try
+			{
+				for(Map.Entry<String, PartySnapshot> entry : parties.entrySet())
+				{
+					PartySnapshot snapshot = entry.getValue();
+					if(snapshot.leaders == null)
+					{
+						storage.removeParty(entry.getKey());
+					}
+					else
+					{
+						storage.saveParty(entry.getKey(), snapshot.leaders, snapshot.members);
+					}
+				}
+				for(Map.Entry<String, String> entry : players.entrySet())
+				{
+					if(REMOVED.equals(entry.getValue()))
+					{
+						storage.removePlayer(entry.getKey());
+					}
+					else
+					{
+						storage.savePlayer(entry.getKey(), entry.getValue());
+					}
+				}
+				for(Map.Entry<String, String> entry : names.entrySet())
+				{
+					storage.saveName(entry.getKey(), entry.getValue());
+				}
+				for(Map.Entry<String, List<String>> entry : spies.entrySet())
+				{
+					storage.saveSpy(entry.getKey(), entry.getValue());
+				}
+				storage.commit();
+				plugin.getMetrics().flush.record(System.nanoTime() - start);
+			}
+			catch(StorageException e)
+			{
+				//the changes stay marked for the next try
+				plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+				return;
+			}
+			
+			//entries that were marked again meanwhile stay for the next flush
+			settle(dirtyParties, parties);
+			settle(dirtyPlayers, players);
+			settle(dirtyNames, names);
+			settle(dirtySpies, spies);
+		}
+	}
+	
+	private static <V> void settle(ConcurrentHashMap<String, V> dirty, Map<String, V> written)
+	{
+		for(Map.Entry<String, V> entry : written.entrySet())
+		{
+			dirty.remove(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	private static class PartySnapshot
+	{
+		final List<String> leaders;
+		final List<String> members;
+		
+		PartySnapshot(List<String> leaders, List<String> members)
+		{
+			this.leaders = leaders;
+			this.members = members;
+		}
+	}
+}
@@ -28,7 +28,6 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.metadata.FixedMetadataValue;
 
 public class PlayerEventHandler implements Listener
 {
@@ -45,27 +44,11 @@ public class PlayerEventHandler implements Listener
 	{
 		Player player = event.getPlayer();
 		
+		plugin.openSession(player);
 		plugin.registerSpy(player);
-		
-		Party party = plugin.getPlayerParty(player);
-		
-		if(party == null)
-		{
-			player.removeMetadata("party", plugin);
-			return;
-		}
-		
-		player.setMetadata("party", new FixedMetadataValue(plugin, party.name));
-		
-		if(party.leaders.contains(player.getName())) 
-		{
-			player.setMetadata("isPartyLeader", new FixedMetadataValue(plugin, true));
-		} else {
-			player.removeMetadata("isPartyLeader", plugin);
-		}
-		
-		party.activePlayers.add(player);
-		
+		//the kept messages include the recent chat, so the replay is only for players without any
+		boolean mail = plugin.deliverMail(player);
+		plugin.activatePlayer(player, !mail);
 	}
 	
 	//when a player quits...
@@ -73,42 +56,59 @@ public class PlayerEventHandler implements Listener
 	void onPlayerQuit(PlayerQuitEvent event) 
 	{
 		Player player = event.getPlayer();
-		if(player.hasMetadata("party")) 
+		Party party = plugin.getPlayerParty(player);
+		if(party != null) 
 		{
-			String partyName = player.getMetadata("party").get(0).asString();
-			Party party = plugin.loadParty(partyName);
-			
 			party.activePlayers.remove(player);
+			party.lastUsed = System.currentTimeMillis();
 			
-			player.removeMetadata("party", plugin);
-			player.removeMetadata("isPartyLeader", plugin);
+			Mailbox mailbox = plugin.getMailbox();
+			if(mailbox != null) mailbox.leave(plugin.getSession(player).id, party.name);
 		}
 		plugin.unregisterSpy(player);
+		plugin.getDispatcher().remove(player);
+		plugin.closeSession(player);
 	}
 	@EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
 	void onPlayerChat(AsyncPlayerChatEvent event) 
+	{
+		long start = System.nanoTime();
+		try 
+		{
+			routeChat(event);
+		}
+		finally 
+		{
+			plugin.getMetrics().chat.record(System.nanoTime() - start);
+		}
+	}
+	
+	private void routeChat(AsyncPlayerChatEvent event) 
 	{
 		Player player = event.getPlayer();
+		PlayerSession session = plugin.getSession(player);
+		//the player quit while the event was on its way
+		if(session == null) return;
 		
-		if(player.hasMetadata("ignore")) 
+		if(session.ignoreNextChat) 
 		{
-			player.removeMetadata("ignore", plugin);
+			session.ignoreNextChat = false;
 			return;
 		}
 		
-		if(player.hasMetadata("partyToggle")  && player.hasMetadata("party"))
+		Party party = session.party;
+		
+		if(session.partyToggle && party != null)
 		{
 			String message = event.getMessage();
-
-			String partyName = player.getMetadata("party").get(0).asString();
-			Party party = plugin.loadParty(partyName);
+			
+			event.setCancelled(true);
+			if(!plugin.allowPartyChat(session, party)) return;
 			
 			party.sendPlayerMessage(player, message);
 			plugin.sendSpyChatMessage(party, player, message);
-			
-			event.setCancelled(true);
 		}
-		else if(player.hasMetadata("globalChatToggle"))
+		else if(session.globalChatHidden)
 		{
 			plugin.sendMessage(player, "Message cancelled. Type /chat to enable the global chat.");
 			
@@ -116,18 +116,16 @@ public class PlayerEventHandler implements Listener
 		}
 		else
 		{
-			Set<Player> recipients = event.getRecipients();
+			Set<Player> hiddenGlobalChat = plugin.getHiddenGlobalChat();
+			
+			//only the players who hid the global chat are touched, nothing at all if nobody did
+			if(hiddenGlobalChat.isEmpty()) return;
 			
-			/* Set iterator */
-			Iterator<Player> recipientIterator = recipients.iterator();
-			Player playerInstance = null;
+			Set<Player> recipients = event.getRecipients();
 			
-			while(recipientIterator.hasNext()) {
-				playerInstance = recipientIterator.next();
-				if (playerInstance.hasMetadata("globalChatToggle")) {
-					/* Remove an objet from a set with the iterator */
-					recipientIterator.remove();
-				}
+			for(Player hiddenPlayer : hiddenGlobalChat) 
+			{
+				recipients.remove(hiddenPlayer);
 			}
 		}
 	}
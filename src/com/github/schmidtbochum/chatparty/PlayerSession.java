@@ -0,0 +1,73 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.entity.Player;
+
+//per-player state while the player is online, replaces the string keyed bukkit metadata
+//fields are volatile because the async chat thread reads them
+public class PlayerSession
+{
+	public final Player player;
+	//storage key of the player, see IdentityCache
+	public final String id;
+	
+	public volatile Party party;
+	public volatile boolean leader;
+	public volatile boolean partyToggle;
+	public volatile boolean globalChatHidden;
+	public volatile boolean ignoreNextChat;
+	//set while the party of the player is read from the storage after the login
+	public volatile boolean partyLoading;
+	
+	//lower case party name -> pending invitation, oldest first; main thread only
+	public final LinkedHashMap<String, Invitation> invitations = new LinkedHashMap<String, Invitation>();
+	
+	//last chat log search for /party search more; main thread only
+	public ChatLog.Query search;
+	public ChatLog.Page searchPage;
+	
+	//party chat rate limit, see RateLimiter
+	public final AtomicLong chatBucket = RateLimiter.newBucket();
+	
+	//cached permission checks for the message fan-out, see refreshPermissions()
+	public volatile boolean userPermission;
+	public volatile boolean leaderPermission;
+	public volatile boolean adminPermission;
+	public volatile boolean rateLimitBypass;
+	
+	public PlayerSession(Player player, String id)
+	{
+		this.player = player;
+		this.id = id;
+	}
+	
+	//must run on the main thread, called on join, on every command and on a schedule
+	public void refreshPermissions()
+	{
+		userPermission = player.hasPermission("chatparty.user");
+		leaderPermission = player.hasPermission("chatparty.leader");
+		adminPermission = player.hasPermission("chatparty.admin");
+		rateLimitBypass = player.hasPermission("chatparty.ratelimit.bypass");
+	}
+}
@@ -0,0 +1,66 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//token bucket rate limit; the state of one bucket is a single AtomicLong holding the time at which
+//the bucket would be full again, so taking a token is one compare-and-set and never blocks
+public class RateLimiter
+{
+	private final long interval;
+	private final long tolerance;
+	
+	//rate in tokens per second, burst is the size of the bucket
+	public RateLimiter(double rate, int burst)
+	{
+		interval = (long) (1000000000L / rate);
+		tolerance = interval * Math.max(1, burst);
+	}
+	
+	public static AtomicLong newBucket()
+	{
+		return new AtomicLong(System.nanoTime());
+	}
+	
+	//takes a token if one is left
+	public boolean tryAcquire(AtomicLong bucket)
+	{
+		long now = System.nanoTime();
+		while(true)
+		{
+			long fullAt = bucket.get();
+			long next = (fullAt - now < 0 ? now : fullAt) + interval;
+			
+			if(next - now > tolerance) return false;
+			if(bucket.compareAndSet(fullAt, next)) return true;
+		}
+	}
+	
+	//gives back a token taken by tryAcquire, for a message that was rejected by another limit
+	public void release(AtomicLong bucket)
+	{
+		while(true)
+		{
+			long fullAt = bucket.get();
+			if(bucket.compareAndSet(fullAt, fullAt - interval)) return;
+		}
+	}
+}
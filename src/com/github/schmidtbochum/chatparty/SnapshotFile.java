@@ -0,0 +1,107 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//crash safe replacement of a whole file: the new content is written to <file>.tmp and synced,
+//the old file is moved to <file>.bak, the temp file takes its place and the backup is deleted.
+//At every point either the file, or the backup and the complete temp file exist; recover() puts
+//the right one back after a crash. renameTo() does not replace files on Windows, so the
+//old file is moved away instead of being overwritten.
+public class SnapshotFile
+{
+	public static void write(File file, byte[] data) throws IOException
+	{
+		File tempFile = tempFile(file);
+		File backupFile = backupFile(file);
+		
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		if(backupFile.exists() && !backupFile.delete()) throw new IOException("Could not delete " + backupFile);
+		if(file.exists() && !file.renameTo(backupFile)) throw new IOException("Could not move " + file + " to " + backupFile);
+		if(!tempFile.renameTo(file)) throw new IOException("Could not rename " + tempFile + ", the previous version is in " + backupFile);
+		backupFile.delete();
+	}
+	
+	//true if the file exists, possibly only as the backup of an interrupted write
+	public static boolean exists(File file)
+	{
+		return file.exists() || backupFile(file).exists();
+	}
+	
+	//must run before the file is read; returns false if there is no version of the file at all
+	public static boolean recover(File file) throws IOException
+	{
+		File tempFile = tempFile(file);
+		File backupFile = backupFile(file);
+		
+		if(file.exists())
+		{
+			//a write that did not get to the renames, or a backup that was not deleted
+			tempFile.delete();
+			backupFile.delete();
+			return true;
+		}
+		if(backupFile.exists())
+		{
+			//the old file was moved away, so the temp file was complete
+			if(tempFile.exists())
+			{
+				if(!tempFile.renameTo(file)) throw new IOException("Could not rename " + tempFile);
+				backupFile.delete();
+				return true;
+			}
+			if(!backupFile.renameTo(file)) throw new IOException("Could not rename " + backupFile);
+			return true;
+		}
+		//the first write of the file, it may not be complete
+		tempFile.delete();
+		return false;
+	}
+	
+	private static File tempFile(File file)
+	{
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	private static File backupFile(File file)
+	{
+		return new File(file.getPath() + ".bak");
+	}
+}
@@ -0,0 +1,232 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.bukkit.entity.Player;
+
+//spy subscriptions of the admins by player id and a party -> watchers index for the online ones
+//a subscription is a party name or a pattern with * and ?, a single * watches everything
+//subscriptions change on the main thread, every change publishes a new immutable snapshot
+//whose watcher lists are built lazily per party, so a message only costs its watchers
+public class SpyIndex
+{
+	public static final String ALL = "*";
+	
+	private static final Player[] NONE = new Player[0];
+	
+	private final HashMap<String, LinkedHashSet<String>> subscriptions;
+	private final HashMap<Player, Spy> online;
+	private volatile Snapshot snapshot;
+	
+	public SpyIndex()
+	{
+		subscriptions = new HashMap<String, LinkedHashSet<String>>();
+		online = new HashMap<Player, Spy>();
+		snapshot = new Snapshot(new ArrayList<Spy>());
+	}
+	
+	public void load(Map<String, List<String>> stored)
+	{
+		for(Map.Entry<String, List<String>> entry : stored.entrySet())
+		{
+			if(entry.getValue().isEmpty()) continue;
+			subscriptions.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+		}
+	}
+	
+	public List<String> getSubscriptions(String playerId)
+	{
+		LinkedHashSet<String> targets = subscriptions.get(playerId);
+		return targets == null ? new ArrayList<String>() : new ArrayList<String>(targets);
+	}
+	
+	//moves subscriptions stored under an old key, returns false if there were none
+	public boolean rename(String oldId, String newId)
+	{
+		LinkedHashSet<String> targets = subscriptions.remove(oldId);
+		if(targets == null) return false;
+		
+		LinkedHashSet<String> existing = subscriptions.get(newId);
+		if(existing != null) targets.addAll(existing);
+		subscriptions.put(newId, targets);
+		return true;
+	}
+	
+	public void join(String playerId, Player player)
+	{
+		LinkedHashSet<String> targets = subscriptions.get(playerId);
+		if(targets == null) return;
+		
+		online.put(player, new Spy(player, targets));
+		publish();
+	}
+	
+	public void quit(Player player)
+	{
+		if(online.remove(player) != null) publish();
+	}
+	
+	//adds the subscription if it is missing, removes it otherwise; returns true if it was added
+	public boolean toggle(String playerId, Player player, String target)
+	{
+		LinkedHashSet<String> targets = subscriptions.get(playerId);
+		if(targets == null)
+		{
+			targets = new LinkedHashSet<String>();
+			subscriptions.put(playerId, targets);
+		}
+		
+		boolean added = targets.add(target);
+		if(!added) targets.remove(target);
+		
+		update(playerId, player, targets);
+		return added;
+	}
+	
+	public void clear(String playerId, Player player)
+	{
+		update(playerId, player, new LinkedHashSet<String>());
+	}
+	
+	//online spies that watch the party, including the ones that watch everything
+	public Player[] getWatchers(Party party)
+	{
+		return snapshot.getWatchers(party.name);
+	}
+	
+	private void update(String playerId, Player player, LinkedHashSet<String> targets)
+	{
+		if(targets.isEmpty())
+		{
+			subscriptions.remove(playerId);
+			online.remove(player);
+		}
+		else
+		{
+			online.put(player, new Spy(player, targets));
+		}
+		publish();
+	}
+	
+	private void publish()
+	{
+		snapshot = new Snapshot(online.values());
+	}
+	
+	private static class Snapshot
+	{
+		final Spy[] spies;
+		final ConcurrentHashMap<String, Player[]> watchers;
+		
+		Snapshot(Collection<Spy> spies)
+		{
+			this.spies = spies.toArray(new Spy[spies.size()]);
+			watchers = new ConcurrentHashMap<String, Player[]>();
+		}
+		
+		Player[] getWatchers(String partyName)
+		{
+			Player[] result = watchers.get(partyName);
+			if(result != null) return result;
+			
+			List<Player> players = new ArrayList<Player>();
+			for(Spy spy : spies)
+			{
+				if(spy.matches(partyName)) players.add(spy.player);
+			}
+			result = players.isEmpty() ? NONE : players.toArray(new Player[players.size()]);
+			watchers.put(partyName, result);
+			return result;
+		}
+	}
+	
+	//immutable view of one online spy
+	private static class Spy
+	{
+		final Player player;
+		final boolean all;
+		final String[] parties;
+		final Pattern[] patterns;
+		
+		Spy(Player player, Collection<String> targets)
+		{
+			this.player = player;
+			
+			List<String> parties = new ArrayList<String>();
+			List<Pattern> patterns = new ArrayList<Pattern>();
+			boolean all = false;
+			
+			for(String target : targets)
+			{
+				if(target.equals(ALL))
+				{
+					all = true;
+				}
+				else if(target.indexOf('*') >= 0 || target.indexOf('?') >= 0)
+				{
+					patterns.add(compile(target));
+				}
+				else
+				{
+					parties.add(target);
+				}
+			}
+			this.all = all;
+			this.parties = parties.toArray(new String[parties.size()]);
+			this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+		}
+		
+		boolean matches(String partyName)
+		{
+			if(all) return true;
+			
+			for(String party : parties)
+			{
+				if(party.equalsIgnoreCase(partyName)) return true;
+			}
+			for(Pattern pattern : patterns)
+			{
+				if(pattern.matcher(partyName).matches()) return true;
+			}
+			return false;
+		}
+		
+		private static Pattern compile(String glob)
+		{
+			StringBuilder regex = new StringBuilder();
+			for(String part : glob.split("(?=[*?])|(?<=[*?])"))
+			{
+				if(part.equals("*")) regex.append(".*");
+				else if(part.equals("?")) regex.append('.');
+				else if(part.length() > 0) regex.append(Pattern.quote(part));
+			}
+			return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+//stores parties, players, player names and spies as single rows in an embedded SQLite database
+//every party member is a row of the members table, so a join, leave or kick writes one row
+//the players, spies and members tables are keyed by player id
+//the driver ships with CraftBukkit, writes are collected in batches and committed in one transaction
+public class SqliteStorage implements PartyStorage
+{
+	private final ChatPartyPlugin plugin;
+	private final File file;
+	
+	private Connection connection;
+	private PreparedStatement saveParty;
+	private PreparedStatement removeParty;
+	private PreparedStatement addMember;
+	private PreparedStatement updateMember;
+	private PreparedStatement removeMember;
+	private PreparedStatement removeMembers;
+	private PreparedStatement savePlayer;
+	private PreparedStatement removePlayer;
+	private PreparedStatement saveSpy;
+	private PreparedStatement removeSpy;
+	private PreparedStatement saveName;
+	private PreparedStatement loadParty;
+	private PreparedStatement loadRoles;
+	private PreparedStatement loadPlayerParty;
+	private PreparedStatement loadPlayerId;
+	private boolean pending;
+	
+	public SqliteStorage(ChatPartyPlugin plugin, File file)
+	{
+		this.plugin = plugin;
+		this.file = file;
+	}
+	
+	public synchronized void open() throws StorageException
+	{
+		try
+		{
+			Class.forName("org.sqlite.JDBC");
+			connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+			
+			Statement statement = connection.createStatement();
+			try
+			{
+				statement.execute("PRAGMA journal_mode=WAL");
+				statement.execute("PRAGMA synchronous=NORMAL");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS parties (name VARCHAR(16) PRIMARY KEY)");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS members (party VARCHAR(16) NOT NULL, player VARCHAR(36) NOT NULL, role VARCHAR(8) NOT NULL, PRIMARY KEY (party, player))");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS players (name VARCHAR(36) PRIMARY KEY, party VARCHAR(16) NOT NULL)");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS spies (name VARCHAR(36) PRIMARY KEY, targets TEXT NOT NULL DEFAULT '*')");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS names (id VARCHAR(36) PRIMARY KEY, name VARCHAR(16) NOT NULL)");
+				statement.executeUpdate("CREATE INDEX IF NOT EXISTS names_name ON names (name COLLATE NOCASE)");
+				
+				//databases from before spy subscriptions have no targets column
+				ResultSet columns = statement.executeQuery("PRAGMA table_info(spies)");
+				boolean hasTargets = false;
+				while(columns.next())
+				{
+					if(columns.getString("name").equalsIgnoreCase("targets")) hasTargets = true;
+				}
+				columns.close();
+				if(!hasTargets) statement.executeUpdate("ALTER TABLE spies ADD COLUMN targets TEXT NOT NULL DEFAULT '*'");
+			}
+			finally
+			{
+				statement.close();
+			}
+			
+			connection.setAutoCommit(false);
+			
+			saveParty = connection.prepareStatement("INSERT OR IGNORE INTO parties (name) VALUES (?)");
+			removeParty = connection.prepareStatement("DELETE FROM parties WHERE name = ?");
+			addMember = connection.prepareStatement("INSERT OR REPLACE INTO members (party, player, role) VALUES (?, ?, ?)");
+			updateMember = connection.prepareStatement("UPDATE members SET role = ? WHERE party = ? AND player = ?");
+			removeMember = connection.prepareStatement("DELETE FROM members WHERE party = ? AND player = ?");
+			removeMembers = connection.prepareStatement("DELETE FROM members WHERE party = ?");
+			savePlayer = connection.prepareStatement("INSERT OR REPLACE INTO players (name, party) VALUES (?, ?)");
+			removePlayer = connection.prepareStatement("DELETE FROM players WHERE name = ?");
+			saveSpy = connection.prepareStatement("INSERT OR REPLACE INTO spies (name, targets) VALUES (?, ?)");
+			removeSpy = connection.prepareStatement("DELETE FROM spies WHERE name = ?");
+			saveName = connection.prepareStatement("INSERT OR REPLACE INTO names (id, name) VALUES (?, ?)");
+			//members in the order they joined, with their last seen names
+			loadParty = connection.prepareStatement("SELECT members.player, members.role, names.name FROM members LEFT JOIN names ON names.id = members.player WHERE members.party = ? ORDER BY members.rowid");
+			loadRoles = connection.prepareStatement("SELECT player, role FROM members WHERE party = ?");
+			loadPlayerParty = connection.prepareStatement("SELECT party FROM players WHERE name = ?");
+			loadPlayerId = connection.prepareStatement("SELECT id FROM names WHERE name = ? COLLATE NOCASE");
+		}
+		catch(ClassNotFoundException e)
+		{
+			throw new StorageException("The SQLite driver is not available", e);
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not open " + file, e);
+		}
+	}
+	
+	public synchronized void close()
+	{
+		if(connection == null) return;
+		
+		try
+		{
+			connection.close();
+		}
+		catch(SQLException e)
+		{
+			plugin.getLogger().log(Level.WARNING, "Could not close " + file, e);
+		}
+		connection = null;
+	}
+	
+	public synchronized List<Party> loadParties() throws StorageException
+	{
+		List<Party> parties = new ArrayList<Party>();
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				ResultSet result = statement.executeQuery("SELECT members.party, members.player, members.role, names.name FROM members LEFT JOIN names ON names.id = members.player ORDER BY members.party, members.rowid");
+				Party party = null;
+				while(result.next())
+				{
+					String partyName = result.getString(1);
+					if(party == null || !party.name.equals(partyName))
+					{
+						if(party != null && party.count(PartyRole.LEADER) > 0) parties.add(party);
+						party = new Party(partyName, plugin);
+					}
+					addMember(party, result.getString(2), result.getString(3), result.getString(4));
+				}
+				if(party != null && party.count(PartyRole.LEADER) > 0) parties.add(party);
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not load the " + plugin.TEXT_PARTIES, e);
+		}
+		return parties;
+	}
+	
+	public synchronized List<String> loadPartyNames() throws StorageException
+	{
+		List<String> names = new ArrayList<String>();
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				ResultSet result = statement.executeQuery("SELECT name FROM parties");
+				while(result.next())
+				{
+					names.add(result.getString(1));
+				}
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not load the " + plugin.TEXT_PARTY + " names", e);
+		}
+		return names;
+	}
+	
+	public synchronized Party loadParty(String partyName) throws StorageException
+	{
+		try
+		{
+			loadParty.setString(1, partyName);
+			ResultSet result = loadParty.executeQuery();
+			try
+			{
+				Party party = new Party(partyName, plugin);
+				while(result.next())
+				{
+					addMember(party, result.getString(1), result.getString(2), result.getString(3));
+				}
+				return party.count(PartyRole.LEADER) > 0 ? party : null;
+			}
+			finally
+			{
+				result.close();
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not load the " + plugin.TEXT_PARTY + " " + partyName, e);
+		}
+	}
+	
+	public synchronized String loadPlayerParty(String playerId) throws StorageException
+	{
+		try
+		{
+			return queryString(loadPlayerParty, playerId);
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not load the player " + playerId, e);
+		}
+	}
+	
+	public synchronized String loadPlayerId(String playerName) throws StorageException
+	{
+		try
+		{
+			return queryString(loadPlayerId, playerName);
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not look up the player " + playerName, e);
+		}
+	}
+	
+	public synchronized Map<String, List<String>> loadSpies() throws StorageException
+	{
+		Map<String, List<String>> spies = new HashMap<String, List<String>>();
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				ResultSet result = statement.executeQuery("SELECT name, targets FROM spies");
+				while(result.next())
+				{
+					spies.put(result.getString(1), new ArrayList<String>(split(result.getString(2))));
+				}
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not load the spies", e);
+		}
+		return spies;
+	}
+	
+	public synchronized void saveParty(String partyName, List<String> leaders, List<String> members) throws StorageException
+	{
+		try
+		{
+			saveParty.setString(1, partyName);
+			saveParty.addBatch();
+			
+			HashMap<String, String> current = new HashMap<String, String>();
+			for(String playerId : leaders) current.put(playerId, PartyRole.LEADER.name());
+			for(String playerId : members) current.put(playerId, PartyRole.MEMBER.name());
+			
+			//only the rows that changed are written; a party is saved at most once per commit,
+			//so the stored rows are the state before this save
+			loadRoles.setString(1, partyName);
+			ResultSet result = loadRoles.executeQuery();
+			try
+			{
+				while(result.next())
+				{
+					String playerId = result.getString(1);
+					String role = current.remove(playerId);
+					if(role == null)
+					{
+						removeMember.setString(1, partyName);
+						removeMember.setString(2, playerId);
+						removeMember.addBatch();
+					}
+					else if(!role.equals(result.getString(2)))
+					{
+						updateMember.setString(1, role);
+						updateMember.setString(2, partyName);
+						updateMember.setString(3, playerId);
+						updateMember.addBatch();
+					}
+				}
+			}
+			finally
+			{
+				result.close();
+			}
+			//the new members, in join order
+			for(String playerId : leaders) addMemberRow(partyName, playerId, current);
+			for(String playerId : members) addMemberRow(partyName, playerId, current);
+			pending = true;
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not save the " + plugin.TEXT_PARTY + " " + partyName, e);
+		}
+	}
+	
+	public synchronized void removeParty(String partyName) throws StorageException
+	{
+		addBatch(removeParty, partyName);
+		addBatch(removeMembers, partyName);
+	}
+	
+	public synchronized void savePlayer(String playerId, String partyName) throws StorageException
+	{
+		try
+		{
+			savePlayer.setString(1, playerId);
+			savePlayer.setString(2, partyName);
+			savePlayer.addBatch();
+			pending = true;
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not save the player " + playerId, e);
+		}
+	}
+	
+	public synchronized void removePlayer(String playerId) throws StorageException
+	{
+		addBatch(removePlayer, playerId);
+	}
+	
+	public synchronized void saveName(String playerId, String playerName) throws StorageException
+	{
+		try
+		{
+			saveName.setString(1, playerId);
+			saveName.setString(2, playerName);
+			saveName.addBatch();
+			pending = true;
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not save the name of " + playerName, e);
+		}
+	}
+	
+	public synchronized void saveSpy(String playerId, List<String> targets) throws StorageException
+	{
+		if(targets.isEmpty())
+		{
+			addBatch(removeSpy, playerId);
+			return;
+		}
+		try
+		{
+			saveSpy.setString(1, playerId);
+			saveSpy.setString(2, join(targets));
+			saveSpy.addBatch();
+			pending = true;
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not save the spy " + playerId, e);
+		}
+	}
+	
+	public synchronized void commit() throws StorageException
+	{
+		if(!pending) return;
+		
+		try
+		{
+			saveParty.executeBatch();
+			removeParty.executeBatch();
+			removeMember.executeBatch();
+			updateMember.executeBatch();
+			addMember.executeBatch();
+			removeMembers.executeBatch();
+			savePlayer.executeBatch();
+			removePlayer.executeBatch();
+			saveSpy.executeBatch();
+			removeSpy.executeBatch();
+			saveName.executeBatch();
+			connection.commit();
+		}
+		catch(SQLException e)
+		{
+			try
+			{
+				connection.rollback();
+				saveParty.clearBatch();
+				removeParty.clearBatch();
+				removeMember.clearBatch();
+				updateMember.clearBatch();
+				addMember.clearBatch();
+				removeMembers.clearBatch();
+				savePlayer.clearBatch();
+				removePlayer.clearBatch();
+				saveSpy.clearBatch();
+				removeSpy.clearBatch();
+				saveName.clearBatch();
+			}
+			catch(SQLException rollbackException)
+			{
+				plugin.getLogger().log(Level.WARNING, "Could not roll back " + file, rollbackException);
+			}
+			throw new StorageException("Could not write to " + file, e);
+		}
+		finally
+		{
+			pending = false;
+		}
+	}
+	
+	//names of players that never joined since ids were introduced are unknown, their id is shown instead
+	private static void addMember(Party party, String playerId, String role, String playerName)
+	{
+		party.setRole(playerId, playerName != null ? playerName : playerId, PartyRole.LEADER.name().equals(role) ? PartyRole.LEADER : PartyRole.MEMBER);
+	}
+	
+	//only if the player is still in current, i.e. has no row yet
+	private void addMemberRow(String partyName, String playerId, Map<String, String> current) throws SQLException
+	{
+		String role = current.remove(playerId);
+		if(role == null) return;
+		
+		addMember.setString(1, partyName);
+		addMember.setString(2, playerId);
+		addMember.setString(3, role);
+		addMember.addBatch();
+	}
+	
+	private static String queryString(PreparedStatement statement, String key) throws SQLException
+	{
+		statement.setString(1, key);
+		ResultSet result = statement.executeQuery();
+		try
+		{
+			return result.next() ? result.getString(1) : null;
+		}
+		finally
+		{
+			result.close();
+		}
+	}
+	
+	private void addBatch(PreparedStatement statement, String key) throws StorageException
+	{
+		try
+		{
+			statement.setString(1, key);
+			statement.addBatch();
+			pending = true;
+		}
+		catch(SQLException e)
+		{
+			throw new StorageException("Could not write " + key + " to " + file, e);
+		}
+	}
+	
+	private static String join(List<String> names)
+	{
+		StringBuilder builder = new StringBuilder();
+		for(String name : names)
+		{
+			if(builder.length() > 0) builder.append(',');
+			builder.append(name);
+		}
+		return builder.toString();
+	}
+	
+	private static List<String> split(String names)
+	{
+		if(names == null || names.length() == 0) return new ArrayList<String>();
+		return Arrays.asList(names.split(","));
+	}
+}
@@ -0,0 +1,80 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+//the string table of the binary snapshots (BinaryStorage, Mailbox): every distinct string gets an
+//index in the order of first use and is written once as count, then short length + UTF-8 bytes each
+public class StringTable
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final List<String> strings = new ArrayList<String>();
+	private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+	
+	public int index(String string)
+	{
+		Integer index = indexes.get(string);
+		if(index == null)
+		{
+			index = strings.size();
+			strings.add(string);
+			indexes.put(string, index);
+		}
+		return index;
+	}
+	
+	public int size()
+	{
+		return strings.size();
+	}
+	
+	//longer strings are cut at 65535 bytes
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(strings.size());
+		for(String string : strings)
+		{
+			byte[] bytes = string.getBytes(UTF8);
+			int length = Math.min(bytes.length, 0xFFFF);
+			out.writeShort(length);
+			out.write(bytes, 0, length);
+		}
+	}
+	
+	public static String[] read(ByteBuffer buffer)
+	{
+		String[] strings = new String[buffer.getInt()];
+		for(int i = 0; i < strings.length; i++)
+		{
+			byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(bytes);
+			strings[i] = new String(bytes, UTF8);
+		}
+		return strings;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+//message bus over a tcp connection to a BusBroker, which forwards every frame to the other nodes
+//a writer thread drains the outgoing queue into one frame per batch and reconnects with a backoff;
+//a reader thread per connection decodes incoming frames. Frames of the own node and frames that
+//were already seen (by origin and sequence) are skipped. An origin that stays silent is forgotten
+//after a while, every restart without a bus.nodeId joins under a new random one.
+public class TcpMessageBus implements MessageBus, Runnable
+{
+	private static final long MIN_BACKOFF = 1000L;
+	private static final long MAX_BACKOFF = 30000L;
+	private static final long ORIGIN_TIMEOUT = 10L * 60L * 1000L;
+	
+	private final Logger logger;
+	private final String host;
+	private final int port;
+	private final String nodeId;
+	private final int batchSize;
+	
+	private final LinkedBlockingQueue<BusMessage> outgoing;
+	private final AtomicLong dropped;
+	//last sequence per origin, least recently heard first; only used by the reader threads
+	private final LinkedHashMap<String, Origin> origins;
+	//starts at the clock, so a restarted node continues above its old sequences
+	private long sequence;
+	
+	private volatile boolean running;
+	private volatile Socket socket;
+	private DataOutputStream out;
+	private Listener listener;
+	private Thread writer;
+	
+	public TcpMessageBus(Logger logger, String host, int port, String nodeId, int batchSize, int queueSize)
+	{
+		this.logger = logger;
+		this.host = host;
+		this.port = port;
+		this.nodeId = nodeId;
+		this.batchSize = Math.min(batchSize, 0xFFFF);
+		
+		outgoing = new LinkedBlockingQueue<BusMessage>(queueSize);
+		dropped = new AtomicLong();
+		origins = new LinkedHashMap<String, Origin>(16, 0.75f, true);
+	}
+	
+	public void start(Listener listener)
+	{
+		this.listener = listener;
+		sequence = System.currentTimeMillis() << 16;
+		running = true;
+		
+		writer = new Thread(this, "ChatParty bus writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	public void stop()
+	{
+		running = false;
+		if(writer == null) return;
+		
+		writer.interrupt();
+		try
+		{
+			writer.join(5000L);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+		disconnect(socket);
+	}
+	
+	//never blocks; messages are dropped while the queue is full, e.g. when the broker is down
+	public void publish(BusMessage message)
+	{
+		if(!outgoing.offer(message)) dropped.incrementAndGet();
+	}
+	
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+	
+	public void run()
+	{
+		List<BusMessage> batch = new ArrayList<BusMessage>(batchSize);
+		long backoff = MIN_BACKOFF;
+		
+		while(running)
+		{
+			if(socket == null)
+			{
+				try
+				{
+					connect();
+					backoff = MIN_BACKOFF;
+				}
+				catch(IOException e)
+				{
+					if(backoff == MIN_BACKOFF) logger.warning("Could not connect to the message bus at " + host + ":" + port + ": " + e.getMessage());
+					try
+					{
+						Thread.sleep(backoff);
+					}
+					catch(InterruptedException interrupted)
+					{
+						break;
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+					continue;
+				}
+			}
+			
+			try
+			{
+				BusMessage first = outgoing.poll(1, TimeUnit.SECONDS);
+				if(first == null) continue;
+				
+				//everything that queued up while the last frame was written goes into this one
+				batch.add(first);
+				outgoing.drainTo(batch, batchSize - 1);
+				
+				send(batch);
+				out.flush();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(IOException e)
+			{
+				dropped.addAndGet(batch.size());
+				logger.warning("Lost the connection to the message bus: " + e.getMessage());
+				disconnect(socket);
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+	}
+	
+	//a batch that does not fit into one frame is split until it does
+	private void send(List<BusMessage> batch) throws IOException
+	{
+		byte[] frame = BusMessage.encode(nodeId, sequence + 1, batch);
+		if(frame.length > BusMessage.MAX_FRAME && batch.size() > 1)
+		{
+			int half = batch.size() / 2;
+			send(batch.subList(0, half));
+			send(batch.subList(half, batch.size()));
+			return;
+		}
+		if(frame.length > BusMessage.MAX_FRAME)
+		{
+			dropped.incrementAndGet();
+			logger.warning("Dropped a bus message of " + frame.length + " bytes");
+			return;
+		}
+		
+		sequence++;
+		out.writeInt(frame.length);
+		out.write(frame);
+	}
+	
+	private void connect() throws IOException
+	{
+		Socket socket = new Socket();
+		try
+		{
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), 5000);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		catch(IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+		this.socket = socket;
+		
+		Thread reader = new Thread(new Reader(socket), "ChatParty bus reader");
+		reader.setDaemon(true);
+		reader.start();
+		
+		logger.info("Connected to the message bus at " + host + ":" + port + " as " + nodeId + ".");
+	}
+	
+	private synchronized void disconnect(Socket socket)
+	{
+		if(socket == null) return;
+		
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{
+			//already closed
+		}
+		if(this.socket == socket) this.socket = null;
+	}
+	
+	private void receive(byte[] frame) throws IOException
+	{
+		BusMessage.Batch batch = BusMessage.decode(frame);
+		if(batch.origin.equals(nodeId) || batch.messages.isEmpty()) return;
+		
+		long now = System.currentTimeMillis();
+		synchronized(origins)
+		{
+			//the access order matches lastSeen, so the idle origins are always at the front
+			Origin origin = origins.get(batch.origin);
+			if(origin == null) 
+			{
+				origin = new Origin();
+				origins.put(batch.origin, origin);
+			}
+			origin.lastSeen = now;
+			forgetIdleOrigins(now - ORIGIN_TIMEOUT);
+			
+			if(origin.sequence != 0 && batch.sequence <= origin.sequence) return;
+			origin.sequence = batch.sequence;
+		}
+		listener.received(batch.messages);
+	}
+	
+	private void forgetIdleOrigins(long idleSince)
+	{
+		Iterator<Origin> iterator = origins.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(iterator.next().lastSeen >= idleSince) return;
+			iterator.remove();
+		}
+	}
+	
+	private static class Origin
+	{
+		long sequence;
+		long lastSeen;
+	}
+	
+	private class Reader implements Runnable
+	{
+		private final Socket socket;
+		
+		Reader(Socket socket)
+		{
+			this.socket = socket;
+		}
+		
+		public void run()
+		{
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while(running)
+				{
+					int length = in.readInt();
+					if(length <= 0 || length > BusMessage.MAX_FRAME) throw new IOException("Invalid frame length " + length);
+					
+					byte[] frame = new byte[length];
+					in.readFully(frame);
+					receive(frame);
+				}
+			}
+			catch(IOException e)
+			{
+				if(running && TcpMessageBus.this.socket == socket) logger.warning("Lost the connection to the message bus: " + e.getMessage());
+			}
+			finally
+			{
+				disconnect(socket);
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+//stores everything in the players, names, parties, spy and spyTargets sections of config.yml
+//names maps player ids to the last seen name, the party lists hold player ids
+//spy lists the admins that watch everything, spyTargets the ones with specific subscriptions
+public class YamlStorage implements PartyStorage
+{
+	private final ChatPartyPlugin plugin;
+	private final File file;
+	private YamlConfiguration data;
+	//lower case name -> player id
+	private HashMap<String, String> ids;
+	
+	public YamlStorage(ChatPartyPlugin plugin, File file)
+	{
+		this.plugin = plugin;
+		this.file = file;
+	}
+	
+	public synchronized void open()
+	{
+		//the storage owns its own copy of the file, the main thread never writes to it
+		data = YamlConfiguration.loadConfiguration(file);
+		
+		ids = new HashMap<String, String>();
+		ConfigurationSection names = section("names");
+		for(String playerId : names.getKeys(false))
+		{
+			ids.put(names.getString(playerId).toLowerCase(), playerId);
+		}
+	}
+	
+	public void close()
+	{
+	}
+	
+	public synchronized List<Party> loadParties()
+	{
+		List<Party> parties = new ArrayList<Party>();
+		
+		for(String name : section("parties").getKeys(false)) 
+		{
+			Party party = loadParty(name);
+			if(party != null) parties.add(party);
+		}
+		return parties;
+	}
+	
+	public synchronized List<String> loadPartyNames()
+	{
+		return new ArrayList<String>(section("parties").getKeys(false));
+	}
+	
+	public synchronized Party loadParty(String partyName)
+	{
+		ConfigurationSection partySection = section("parties").getConfigurationSection(partyName);
+		
+		if(partySection == null || partySection.getStringList("leaders").size() == 0) return null;
+		
+		Party party = new Party(partyName, plugin);
+		
+		ConfigurationSection names = section("names");
+		for(String playerId : partySection.getStringList("leaders"))
+		{
+			party.setRole(playerId, names.getString(playerId, playerId), PartyRole.LEADER);
+		}
+		for(String playerId : partySection.getStringList("members"))
+		{
+			party.setRole(playerId, names.getString(playerId, playerId), PartyRole.MEMBER);
+		}
+		
+		return party;
+	}
+	
+	public synchronized String loadPlayerParty(String playerId)
+	{
+		return section("players").getString(playerId);
+	}
+	
+	public synchronized String loadPlayerId(String playerName)
+	{
+		return ids.get(playerName.toLowerCase());
+	}
+	
+	public synchronized Map<String, List<String>> loadSpies()
+	{
+		Map<String, List<String>> spies = new HashMap<String, List<String>>();
+		for(String playerName : data.getStringList("spy"))
+		{
+			spies.put(playerName, new ArrayList<String>(Collections.singletonList(SpyIndex.ALL)));
+		}
+		ConfigurationSection targetsSection = section("spyTargets");
+		for(String playerName : targetsSection.getKeys(false))
+		{
+			spies.put(playerName, new ArrayList<String>(targetsSection.getStringList(playerName)));
+		}
+		return spies;
+	}
+	
+	public synchronized void saveParty(String partyName, List<String> leaders, List<String> members)
+	{
+		ConfigurationSection partySection = section("parties").createSection(partyName);
+		partySection.set("leaders", leaders);
+		partySection.set("members", members);
+	}
+	
+	public synchronized void removeParty(String partyName)
+	{
+		section("parties").set(partyName, null);
+	}
+	
+	public synchronized void savePlayer(String playerId, String partyName)
+	{
+		section("players").set(playerId, partyName);
+	}
+	
+	public synchronized void removePlayer(String playerId)
+	{
+		section("players").set(playerId, null);
+	}
+	
+	public synchronized void saveName(String playerId, String playerName)
+	{
+		String previous = section("names").getString(playerId);
+		if(previous != null) ids.remove(previous.toLowerCase());
+		
+		section("names").set(playerId, playerName);
+		ids.put(playerName.toLowerCase(), playerId);
+	}
+	
+	public synchronized void saveSpy(String playerId, List<String> targets)
+	{
+		List<String> spies = data.getStringList("spy");
+		spies.remove(playerId);
+		section("spyTargets").set(playerId, null);
+		
+		if(targets.size() == 1 && targets.contains(SpyIndex.ALL)) 
+		{
+			spies.add(playerId);
+		}
+		else if(!targets.isEmpty())
+		{
+			section("spyTargets").set(playerId, targets);
+		}
+		data.set("spy", spies);
+	}
+	
+	//the file is serialized under the lock and written outside of it, so loads from the main thread
+	//never wait for the disk
+	public void commit() throws StorageException
+	{
+		byte[] contents;
+		synchronized(this)
+		{
+			//the platform encoding, like FileConfiguration.save() and loadConfiguration()
+			contents = data.saveToString().getBytes();
+		}
+		
+		synchronized(file)
+		{
+			try
+			{
+				SnapshotFile.write(file, contents);
+			}
+			catch(IOException e)
+			{
+				throw new StorageException("Could not save " + file, e);
+			}
+		}
+	}
+	
+	private ConfigurationSection section(String path)
+	{
+		ConfigurationSection section = data.getConfigurationSection(path);
+		return section != null ? section : data.createSection(path);
+	}
+}
@@ -0,0 +1,271 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryStorageTest
+{
+	private File folder;
+	private File file;
+	private File logFile;
+	private ChatPartyPlugin plugin;
+	private BinaryStorage storage;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		file = new File(folder, "parties.dat");
+		logFile = new File(folder, "parties.log");
+		plugin = StandInPlugin.create(folder);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if(storage != null) storage.close();
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void firstCommitWritesTheSnapshot() throws Exception
+	{
+		storage = open(1000);
+		assertFalse(SnapshotFile.exists(file));
+		
+		storage.commit();
+		assertTrue(file.exists());
+		assertEquals(0, logFile.length());
+	}
+	
+	@Test
+	public void replaysCommittedChanges() throws Exception
+	{
+		storage = create(1000);
+		saveAlphaParty();
+		storage.saveSpy("carol", Arrays.asList("alpha", "b*"));
+		storage.commit();
+		assertTrue(logFile.length() > 0);
+		
+		storage = reopen(1000);
+		assertAlphaParty();
+		assertEquals("alice", storage.loadPlayerId("ALICE"));
+		assertEquals(Arrays.asList("alpha", "b*"), storage.loadSpies().get("carol"));
+	}
+	
+	@Test
+	public void replaysRemovals() throws Exception
+	{
+		storage = create(1000);
+		saveAlphaParty();
+		storage.saveSpy("carol", list("alpha"));
+		storage.commit();
+		storage.saveParty("alpha", list("alice"), Collections.<String>emptyList());
+		storage.removePlayer("bob");
+		storage.saveSpy("carol", Collections.<String>emptyList());
+		storage.saveName("bob", "Robert");
+		storage.commit();
+		
+		storage = reopen(1000);
+		assertEquals(list("alice"), storage.loadParty("alpha").getMemberIds());
+		assertNull(storage.loadPlayerParty("bob"));
+		assertNull(storage.loadSpies().get("carol"));
+		assertEquals("bob", storage.loadPlayerId("robert"));
+		assertNull(storage.loadPlayerId("bob"));
+		
+		storage.removeParty("alpha");
+		storage.commit();
+		storage = reopen(1000);
+		assertNull(storage.loadParty("alpha"));
+	}
+	
+	@Test
+	public void uncommittedChangesAreNotKept() throws Exception
+	{
+		storage = create(1000);
+		saveAlphaParty();
+		storage.commit();
+		storage.savePlayer("dave", "alpha");
+		
+		storage = reopen(1000);
+		assertNull(storage.loadPlayerParty("dave"));
+	}
+	
+	@Test
+	public void cutsOffATornLastRecord() throws Exception
+	{
+		storage = create(1000);
+		saveAlphaParty();
+		storage.commit();
+		storage.close();
+		long length = logFile.length();
+		
+		//a commit that was interrupted after the length and part of the payload
+		append(logFile, new byte[] {0, 0, 0, 20, 1, 2, 3, 4, 'J', 0, 4, 'd', 'a'});
+		
+		storage = open(1000);
+		assertAlphaParty();
+		assertEquals(length, logFile.length());
+		
+		//the next record follows the last valid one
+		storage.savePlayer("dave", "alpha");
+		storage.commit();
+		storage = reopen(1000);
+		assertEquals("alpha", storage.loadPlayerParty("dave"));
+	}
+	
+	@Test
+	public void skipsARecordWithAWrongChecksum() throws Exception
+	{
+		storage = create(1000);
+		saveAlphaParty();
+		storage.savePlayer("dave", "alpha");
+		storage.saveName("carol", "Carol");
+		storage.commit();
+		storage.close();
+		
+		//the party of dave's record is changed without its checksum
+		String log = read(logFile);
+		int index = log.indexOf("dave\u0000\u0005alpha");
+		assertTrue(index > 0);
+		RandomAccessFile access = new RandomAccessFile(logFile, "rw");
+		try
+		{
+			access.seek(index + "dave\u0000\u0005".length());
+			access.write('A');
+		}
+		finally
+		{
+			access.close();
+		}
+		
+		storage = open(1000);
+		assertNull(storage.loadPlayerParty("dave"));
+		assertAlphaParty();
+		assertEquals("carol", storage.loadPlayerId("carol"));
+	}
+	
+	@Test
+	public void compactsIntoTheSnapshot() throws Exception
+	{
+		storage = create(3);
+		saveAlphaParty();
+		storage.commit();
+		
+		assertEquals(0, logFile.length());
+		
+		storage.savePlayer("dave", "alpha");
+		storage.commit();
+		assertTrue(logFile.length() > 0);
+		
+		storage = reopen(3);
+		assertAlphaParty();
+		assertEquals("alpha", storage.loadPlayerParty("dave"));
+	}
+	
+	private void saveAlphaParty() throws StorageException
+	{
+		storage.saveParty("alpha", list("alice"), list("bob"));
+		storage.savePlayer("alice", "alpha");
+		storage.savePlayer("bob", "alpha");
+		storage.saveName("alice", "Alice");
+		storage.saveName("bob", "Bob");
+	}
+	
+	private void assertAlphaParty() throws StorageException
+	{
+		Party party = storage.loadParty("alpha");
+		assertEquals(list("alice"), party.getMembers(PartyRole.LEADER));
+		assertEquals(list("bob"), party.getMembers(PartyRole.MEMBER));
+		assertEquals("Bob", party.getMemberName("bob"));
+		assertEquals("alpha", storage.loadPlayerParty("alice"));
+		assertEquals("alpha", storage.loadPlayerParty("bob"));
+	}
+	
+	private BinaryStorage open(int compactAfter) throws StorageException
+	{
+		BinaryStorage binary = new BinaryStorage(plugin, file, logFile, compactAfter);
+		binary.open();
+		return binary;
+	}
+	
+	//a new storage with its first snapshot, so the next changes go to the log
+	private BinaryStorage create(int compactAfter) throws StorageException
+	{
+		BinaryStorage binary = open(compactAfter);
+		binary.commit();
+		return binary;
+	}
+	
+	private BinaryStorage reopen(int compactAfter) throws StorageException
+	{
+		storage.close();
+		return open(compactAfter);
+	}
+	
+	private static List<String> list(String value)
+	{
+		return Collections.singletonList(value);
+	}
+	
+	private static void append(File file, byte[] data) throws Exception
+	{
+		FileOutputStream out = new FileOutputStream(file, true);
+		try
+		{
+			out.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	//one char per byte, so indexes are file positions
+	private static String read(File file) throws Exception
+	{
+		byte[] data = new byte[(int) file.length()];
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+		try
+		{
+			access.readFully(data);
+		}
+		finally
+		{
+			access.close();
+		}
+		return new String(data, "ISO-8859-1");
+	}
+}
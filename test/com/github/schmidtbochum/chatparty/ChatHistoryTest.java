@@ -0,0 +1,120 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+//the ring buffer before and after it wraps around, and copies into arrays of other sizes
+public class ChatHistoryTest
+{
+	@Test
+	public void copiesTheLinesOldestFirst()
+	{
+		ChatHistory history = history(4, "a", "b", "c");
+		
+		assertEquals(3, history.size());
+		assertArrayEquals(new String[] { "a", "b", "c" }, copy(history, 3));
+	}
+	
+	@Test
+	public void overwritesTheOldestLinesOnceFull()
+	{
+		ChatHistory history = history(3, "a", "b", "c", "d", "e");
+		
+		assertEquals(3, history.size());
+		assertArrayEquals(new String[] { "c", "d", "e" }, copy(history, 3));
+	}
+	
+	@Test
+	public void wrapsAroundManyTimes()
+	{
+		ChatHistory history = new ChatHistory(3);
+		for(int i = 0; i < 100; i++) 
+		{
+			history.add("line" + i);
+		}
+		
+		assertArrayEquals(new String[] { "line97", "line98", "line99" }, copy(history, 3));
+	}
+	
+	@Test
+	public void aSmallerArrayGetsTheNewestLines()
+	{
+		ChatHistory history = history(4, "a", "b", "c", "d", "e", "f");
+		
+		assertArrayEquals(new String[] { "e", "f" }, copy(history, 2));
+	}
+	
+	@Test
+	public void aLargerArrayIsOnlyFilledUpToTheSize()
+	{
+		ChatHistory history = history(4, "a", "b");
+		
+		String[] lines = new String[6];
+		assertEquals(2, history.copy(lines, new long[6]));
+		assertArrayEquals(new String[] { "a", "b", null, null, null, null }, lines);
+	}
+	
+	@Test
+	public void copiesTheTimesWithTheLines()
+	{
+		long before = System.currentTimeMillis();
+		ChatHistory history = history(2, "a", "b", "c");
+		long after = System.currentTimeMillis();
+		
+		long[] times = new long[2];
+		history.copy(new String[2], times);
+		assertTrue(times[0] >= before && times[0] <= times[1] && times[1] <= after);
+	}
+	
+	@Test
+	public void keepsNothingWithoutCapacity()
+	{
+		ChatHistory history = history(0, "a", "b");
+		
+		assertEquals(0, history.getCapacity());
+		assertEquals(0, history.size());
+		assertEquals(0, history.copy(new String[2], new long[2]));
+		assertEquals(0, new ChatHistory(-5).getCapacity());
+	}
+	
+	private static ChatHistory history(int capacity, String... lines)
+	{
+		ChatHistory history = new ChatHistory(capacity);
+		for(String line : lines) 
+		{
+			history.add(line);
+		}
+		return history;
+	}
+	
+	private static String[] copy(ChatHistory history, int length)
+	{
+		String[] lines = new String[length];
+		int copied = history.copy(lines, new long[length]);
+		String[] result = new String[copied];
+		System.arraycopy(lines, 0, result, 0, copied);
+		return result;
+	}
+}
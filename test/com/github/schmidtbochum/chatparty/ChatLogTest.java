@@ -0,0 +1,145 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+
+import org.bukkit.scheduler.BukkitScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//length limit of the logged messages and sealing of the segments on close
+public class ChatLogTest
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private File folder;
+	private ChatPartyPlugin plugin;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		//a scheduler that never runs anything, like one whose tasks were cancelled
+		BukkitScheduler scheduler = (BukkitScheduler) Proxy.newProxyInstance(ChatLogTest.class.getClassLoader(), new Class<?>[] { BukkitScheduler.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				return null;
+			}
+		});
+		plugin = StandInPlugin.create(folder, scheduler);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void cutKeepsShortTexts()
+	{
+		assertEquals(5, ChatLog.cut(bytes("hello"), 5));
+		assertEquals(3, ChatLog.cut(bytes("hello"), 3));
+	}
+	
+	@Test
+	public void cutNeverSplitsACharacter()
+	{
+		//the euro sign takes three bytes, the g clef four
+		byte[] euros = bytes("\u20ac\u20ac\u20ac");
+		assertEquals(3, ChatLog.cut(euros, 4));
+		assertEquals(3, ChatLog.cut(euros, 5));
+		assertEquals(6, ChatLog.cut(euros, 6));
+		assertEquals(0, ChatLog.cut(euros, 2));
+		
+		byte[] clefs = bytes("a\ud834\udd1e");
+		assertEquals(1, ChatLog.cut(clefs, 4));
+		assertEquals(5, ChatLog.cut(clefs, 5));
+	}
+	
+	@Test
+	public void logsTheLongestWholePrefixOfLongMessages() throws Exception
+	{
+		ChatLog log = new ChatLog(plugin, new File(folder, "chatlog"), 1 << 20, 60000L);
+		log.open();
+		
+		StringBuilder message = new StringBuilder();
+		for(int i = 0; i < 20000; i++) 
+		{
+			message.append('\u20ac');
+		}
+		log.append("Builders", "alex", message.toString());
+		
+		ChatLog.Page page = log.search(new ChatLog.Query(null, null, 0L, Long.MAX_VALUE, null), 0L, 0, 10);
+		log.close();
+		
+		assertEquals(1, page.lines.size());
+		String line = page.lines.get(0);
+		assertTrue(line.endsWith(message.substring(0, Short.MAX_VALUE / 3)));
+		assertTrue(bytes(line).length < Short.MAX_VALUE + 100);
+	}
+	
+	@Test
+	public void closeSealsTheSegmentsWhoseSealTaskDidNotRun() throws Exception
+	{
+		File logFolder = new File(folder, "chatlog");
+		ChatLog log = new ChatLog(plugin, logFolder, 256, 60000L);
+		log.open();
+		for(int i = 0; i < 10; i++) 
+		{
+			log.append("Builders", "alex", "message number " + i + " with some padding to fill the segment");
+		}
+		log.close();
+		
+		File[] files = logFolder.listFiles();
+		int segments = 0;
+		for(File file : files) 
+		{
+			if(!file.getName().endsWith(".seg")) continue;
+			segments++;
+			
+			String id = file.getName().substring(0, file.getName().length() - 4);
+			assertTrue(new File(logFolder, id + ".idx").exists());
+			assertTrue(file.length() < 256);
+		}
+		assertTrue(segments > 2);
+		
+		ChatLog reopened = new ChatLog(plugin, logFolder, 256, 60000L);
+		reopened.open();
+		ChatLog.Page page = reopened.search(new ChatLog.Query(null, null, 0L, Long.MAX_VALUE, null), 0L, 0, 100);
+		reopened.close();
+		assertEquals(10, page.lines.size());
+	}
+	
+	private static byte[] bytes(String text)
+	{
+		return text.getBytes(UTF8);
+	}
+}
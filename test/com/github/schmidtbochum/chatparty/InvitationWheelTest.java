@@ -0,0 +1,195 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//expiry of the invitations in the timing wheel, one run() is one second
+public class InvitationWheelTest
+{
+	private File folder;
+	private ChatPartyPlugin plugin;
+	private List<String> messages;
+	private PlayerSession session;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		plugin = StandInPlugin.create(folder);
+		messages = new ArrayList<String>();
+		session = new PlayerSession(player(messages), "guest");
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void expiresAfterTheTimeout()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 8);
+		Invitation invitation = invite(wheel, "Builders", 3);
+		
+		turn(wheel, 2);
+		assertTrue(isPending(invitation));
+		
+		turn(wheel, 1);
+		assertFalse(isPending(invitation));
+		assertFalse(invitation.isScheduled());
+		assertEquals(0, wheel.size());
+		assertEquals(1, messages.size());
+	}
+	
+	@Test
+	public void waitsTheRoundsOfLongTimeouts()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 4);
+		Invitation invitation = invite(wheel, "Builders", 10);
+		
+		turn(wheel, 9);
+		assertTrue(isPending(invitation));
+		
+		turn(wheel, 1);
+		assertFalse(isPending(invitation));
+	}
+	
+	@Test
+	public void roundsTheSlotsUpToAPowerOfTwo()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 5);
+		Invitation invitation = invite(wheel, "Builders", 8);
+		
+		turn(wheel, 7);
+		assertTrue(isPending(invitation));
+		
+		turn(wheel, 1);
+		assertFalse(isPending(invitation));
+	}
+	
+	@Test
+	public void expiresTimeoutsBelowOneSecondOnTheNextTurn()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 8);
+		Invitation invitation = invite(wheel, "Builders", 0);
+		
+		turn(wheel, 1);
+		assertFalse(isPending(invitation));
+	}
+	
+	@Test
+	public void cancelledInvitationsDoNotExpire()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 8);
+		Invitation first = invite(wheel, "Builders", 2);
+		Invitation second = invite(wheel, "Miners", 2);
+		Invitation third = invite(wheel, "Farmers", 2);
+		
+		wheel.cancel(second);
+		wheel.cancel(second);
+		assertEquals(2, wheel.size());
+		
+		turn(wheel, 2);
+		assertFalse(isPending(first));
+		assertTrue(isPending(second));
+		assertFalse(isPending(third));
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void schedulingAgainMovesTheInvitation()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 8);
+		Invitation invitation = invite(wheel, "Builders", 2);
+		
+		turn(wheel, 1);
+		wheel.schedule(invitation, 5);
+		assertEquals(1, wheel.size());
+		
+		turn(wheel, 4);
+		assertTrue(isPending(invitation));
+		
+		turn(wheel, 1);
+		assertFalse(isPending(invitation));
+	}
+	
+	@Test
+	public void replacedInvitationsExpireSilently()
+	{
+		InvitationWheel wheel = new InvitationWheel(plugin, 8);
+		invite(wheel, "Builders", 2);
+		//a second invitation to the same party replaces the first one in the session
+		Invitation replacement = new Invitation(session, "Builders", "other");
+		session.invitations.put("builders", replacement);
+		
+		turn(wheel, 2);
+		assertTrue(isPending(replacement));
+		assertEquals(0, messages.size());
+	}
+	
+	private Invitation invite(InvitationWheel wheel, String partyName, long seconds)
+	{
+		Invitation invitation = new Invitation(session, partyName, "leader");
+		session.invitations.put(partyName.toLowerCase(), invitation);
+		wheel.schedule(invitation, seconds);
+		return invitation;
+	}
+	
+	private boolean isPending(Invitation invitation)
+	{
+		return session.invitations.get(invitation.partyName.toLowerCase()) == invitation;
+	}
+	
+	private static void turn(InvitationWheel wheel, int seconds)
+	{
+		for(int i = 0; i < seconds; i++) 
+		{
+			wheel.run();
+		}
+	}
+	
+	private static Player player(final List<String> messages)
+	{
+		return (Player) Proxy.newProxyInstance(InvitationWheelTest.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("sendMessage")) messages.add((String) args[0]);
+				return null;
+			}
+		});
+	}
+}
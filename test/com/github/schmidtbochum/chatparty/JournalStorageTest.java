@@ -0,0 +1,242 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalStorageTest
+{
+	private File folder;
+	private File journalFile;
+	private File snapshotFile;
+	private ChatPartyPlugin plugin;
+	private JournalStorage storage;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		journalFile = new File(folder, "parties.journal");
+		snapshotFile = new File(folder, "parties.snapshot");
+		plugin = StandInPlugin.create(folder);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if(storage != null) storage.close();
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void replaysCommittedChanges() throws Exception
+	{
+		storage = open(1000);
+		saveAlphaParty();
+		storage.saveSpy("carol", Arrays.asList("alpha", "b*"));
+		storage.commit();
+		
+		storage = reopen(1000);
+		assertAlphaParty();
+		assertEquals("alice", storage.loadPlayerId("ALICE"));
+		assertEquals(Arrays.asList("alpha", "b*"), storage.loadSpies().get("carol"));
+	}
+	
+	@Test
+	public void replaysRemovals() throws Exception
+	{
+		storage = open(1000);
+		saveAlphaParty();
+		storage.commit();
+		storage.saveParty("alpha", list("alice"), Collections.<String>emptyList());
+		storage.removePlayer("bob");
+		storage.commit();
+		
+		storage = reopen(1000);
+		assertEquals(list("alice"), storage.loadParty("alpha").getMemberIds());
+		assertNull(storage.loadPlayerParty("bob"));
+		
+		storage.removeParty("alpha");
+		storage.commit();
+		storage = reopen(1000);
+		assertNull(storage.loadParty("alpha"));
+	}
+	
+	@Test
+	public void uncommittedChangesAreNotKept() throws Exception
+	{
+		storage = open(1000);
+		saveAlphaParty();
+		storage.commit();
+		storage.savePlayer("dave", "alpha");
+		
+		storage = reopen(1000);
+		assertNull(storage.loadPlayerParty("dave"));
+	}
+	
+	@Test
+	public void cutsOffATornLastRecord() throws Exception
+	{
+		storage = open(1000);
+		saveAlphaParty();
+		storage.commit();
+		long length = journalFile.length();
+		
+		//a commit that was interrupted in the middle of a line
+		append(journalFile, "0123abcd\tP\tdave\talp");
+		
+		storage = reopen(1000);
+		assertAlphaParty();
+		assertNull(storage.loadPlayerParty("dave"));
+		assertEquals(length, journalFile.length());
+		
+		//the next record starts on its own line
+		storage.savePlayer("dave", "alpha");
+		storage.commit();
+		storage = reopen(1000);
+		assertEquals("alpha", storage.loadPlayerParty("dave"));
+	}
+	
+	@Test
+	public void skipsRecordsWithAWrongChecksum() throws Exception
+	{
+		storage = open(1000);
+		saveAlphaParty();
+		storage.savePlayer("dave", "alpha");
+		storage.commit();
+		storage.close();
+		
+		//the party of dave's record is changed without its checksum
+		String journal = read(journalFile);
+		int index = journal.indexOf("\tdave\talpha");
+		assertTrue(index > 0);
+		RandomAccessFile access = new RandomAccessFile(journalFile, "rw");
+		try
+		{
+			access.seek(index + "\tdave\t".length());
+			access.write('A');
+		}
+		finally
+		{
+			access.close();
+		}
+		
+		storage = open(1000);
+		assertNull(storage.loadPlayerParty("dave"));
+		assertAlphaParty();
+	}
+	
+	@Test
+	public void compactsIntoTheSnapshot() throws Exception
+	{
+		storage = open(3);
+		saveAlphaParty();
+		storage.commit();
+		
+		assertTrue(snapshotFile.exists());
+		assertFalse(read(journalFile).contains("alice"));
+		
+		storage.savePlayer("dave", "alpha");
+		storage.commit();
+		
+		storage = reopen(3);
+		assertAlphaParty();
+		assertEquals("alpha", storage.loadPlayerParty("dave"));
+	}
+	
+	private void saveAlphaParty() throws StorageException
+	{
+		storage.saveParty("alpha", list("alice"), list("bob"));
+		storage.savePlayer("alice", "alpha");
+		storage.savePlayer("bob", "alpha");
+		storage.saveName("alice", "Alice");
+		storage.saveName("bob", "Bob");
+	}
+	
+	private void assertAlphaParty() throws StorageException
+	{
+		Party party = storage.loadParty("alpha");
+		assertEquals(list("alice"), party.getMembers(PartyRole.LEADER));
+		assertEquals(list("bob"), party.getMembers(PartyRole.MEMBER));
+		assertEquals("Bob", party.getMemberName("bob"));
+		assertEquals("alpha", storage.loadPlayerParty("alice"));
+		assertEquals("alpha", storage.loadPlayerParty("bob"));
+	}
+	
+	private JournalStorage open(int compactAfter) throws StorageException
+	{
+		JournalStorage journal = new JournalStorage(plugin, journalFile, snapshotFile, compactAfter);
+		journal.open();
+		return journal;
+	}
+	
+	private JournalStorage reopen(int compactAfter) throws StorageException
+	{
+		storage.close();
+		return open(compactAfter);
+	}
+	
+	private static List<String> list(String value)
+	{
+		return Collections.singletonList(value);
+	}
+	
+	static void append(File file, String data) throws Exception
+	{
+		FileOutputStream out = new FileOutputStream(file, true);
+		try
+		{
+			out.write(data.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	static String read(File file) throws Exception
+	{
+		byte[] data = new byte[(int) file.length()];
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+		try
+		{
+			access.readFully(data);
+		}
+		finally
+		{
+			access.close();
+		}
+		return new String(data, "UTF-8");
+	}
+}
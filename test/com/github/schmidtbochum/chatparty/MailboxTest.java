@@ -0,0 +1,200 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailboxTest
+{
+	private File folder;
+	private File file;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		file = new File(folder, "mailbox.dat");
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void membersGetTheMessagesSinceTheyLeft()
+	{
+		Mailbox mailbox = new Mailbox(file, 10, 60000, false);
+		mailbox.leave("alice", "Alpha");
+		mailbox.post("alpha", "one", false);
+		mailbox.leave("bob", "alpha");
+		mailbox.post("ALPHA", "two", false);
+		
+		//the feed only moves into the box when the player comes back
+		assertFalse(mailbox.hasMail("alice"));
+		mailbox.forget("alice");
+		mailbox.forget("bob");
+		assertTrue(mailbox.hasMail("alice"));
+		
+		assertEquals(Arrays.asList("one", "two"), lines(mailbox.take("alice")));
+		assertEquals(Arrays.asList("two"), lines(mailbox.take("bob")));
+		assertNull(mailbox.take("alice"));
+	}
+	
+	@Test
+	public void keepsChatLinesOnlyIfEnabled()
+	{
+		Mailbox mailbox = new Mailbox(file, 10, 60000, false);
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "chat", true);
+		mailbox.post("alpha", "message", false);
+		//nobody of beta is offline
+		mailbox.post("beta", "lost", false);
+		mailbox.forget("alice");
+		assertEquals(Arrays.asList("message"), lines(mailbox.take("alice")));
+		
+		mailbox = new Mailbox(file, 10, 60000, true);
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "chat", true);
+		mailbox.forget("alice");
+		assertEquals(Arrays.asList("chat"), lines(mailbox.take("alice")));
+	}
+	
+	@Test
+	public void keepsTheNewestMessagesUpToTheCapacity()
+	{
+		Mailbox mailbox = new Mailbox(file, 2, 60000, false);
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "one", false);
+		mailbox.post("alpha", "two", false);
+		mailbox.post("alpha", "three", false);
+		
+		//the cursor of alice points before the first message the feed still has
+		mailbox.forget("alice");
+		assertEquals(Arrays.asList("two", "three"), lines(mailbox.take("alice")));
+		
+		mailbox.send("bob", "one");
+		mailbox.send("bob", "two");
+		mailbox.send("bob", "three");
+		assertEquals(Arrays.asList("two", "three"), lines(mailbox.take("bob")));
+	}
+	
+	@Test
+	public void mergesPartyMessagesByTime()
+	{
+		Mailbox mailbox = new Mailbox(file, 10, 60000, false);
+		long now = System.currentTimeMillis();
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "party", false);
+		mailbox.restore("alice", Arrays.asList(new Mailbox.Mail(now - 1000, "earlier"), new Mailbox.Mail(now + 1000, "later")));
+		
+		mailbox.forget("alice");
+		assertEquals(Arrays.asList("earlier", "party", "later"), lines(mailbox.take("alice")));
+	}
+	
+	@Test
+	public void restoresInFrontOfNewMessages()
+	{
+		Mailbox mailbox = new Mailbox(file, 3, 60000, false);
+		mailbox.send("alice", "one");
+		mailbox.send("alice", "two");
+		List<Mailbox.Mail> taken = mailbox.take("alice");
+		mailbox.send("alice", "three");
+		mailbox.send("alice", "four");
+		
+		//only the newest of the undelivered ones fits
+		mailbox.restore("alice", taken);
+		assertEquals(Arrays.asList("two", "three", "four"), lines(mailbox.take("alice")));
+		
+		mailbox.restore("alice", new ArrayList<Mailbox.Mail>());
+		assertFalse(mailbox.hasMail("alice"));
+	}
+	
+	@Test
+	public void expiresOldMessages() throws Exception
+	{
+		Mailbox mailbox = new Mailbox(file, 10, 60000, false);
+		long now = System.currentTimeMillis();
+		mailbox.restore("alice", Arrays.asList(new Mailbox.Mail(now - 120000, "old"), new Mailbox.Mail(now, "new")));
+		mailbox.restore("bob", Arrays.asList(new Mailbox.Mail(now - 120000, "old")));
+		
+		mailbox.expire();
+		assertEquals(Arrays.asList("new"), lines(mailbox.take("alice")));
+		assertFalse(mailbox.hasMail("bob"));
+		
+		//messages expire right away, the cursor of alice still fits after the feed dropped them
+		mailbox = new Mailbox(file, 10, 0, false);
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "one", false);
+		mailbox.post("alpha", "two", false);
+		Thread.sleep(5);
+		mailbox.expire();
+		mailbox.post("alpha", "three", false);
+		
+		mailbox.forget("alice");
+		assertEquals(Arrays.asList("three"), lines(mailbox.take("alice")));
+	}
+	
+	@Test
+	public void keepsCursorsAndBoxesOverARestart() throws Exception
+	{
+		Mailbox mailbox = new Mailbox(file, 10, 60000, false);
+		mailbox.post("alpha", "before", false);
+		mailbox.leave("alice", "alpha");
+		mailbox.post("alpha", "one", false);
+		mailbox.leave("bob", "alpha");
+		mailbox.send("carol", "direct");
+		mailbox.save();
+		assertTrue(file.exists());
+		
+		mailbox = new Mailbox(file, 10, 60000, false);
+		mailbox.load();
+		mailbox.post("alpha", "two", false);
+		mailbox.forget("alice");
+		mailbox.forget("bob");
+		
+		assertEquals(Arrays.asList("one", "two"), lines(mailbox.take("alice")));
+		assertEquals(Arrays.asList("two"), lines(mailbox.take("bob")));
+		assertEquals(Arrays.asList("direct"), lines(mailbox.take("carol")));
+	}
+	
+	private static List<String> lines(List<Mailbox.Mail> mails)
+	{
+		List<String> lines = new ArrayList<String>();
+		for(Mailbox.Mail mail : mails)
+		{
+			lines.add(mail.line);
+		}
+		return lines;
+	}
+}
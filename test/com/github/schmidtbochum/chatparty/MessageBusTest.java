@@ -0,0 +1,203 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//runs TcpMessageBus nodes against a BusBroker on a free local port
+public class MessageBusTest
+{
+	private static final Logger LOGGER = Logger.getLogger("ChatParty bus test");
+	
+	private BusBroker broker;
+	private List<TcpMessageBus> nodes;
+	private List<Socket> sockets;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		broker = new BusBroker(0);
+		broker.start();
+		nodes = new ArrayList<TcpMessageBus>();
+		sockets = new ArrayList<Socket>();
+	}
+	
+	@After
+	public void tearDown() throws IOException
+	{
+		for(TcpMessageBus node : nodes)
+		{
+			node.stop();
+		}
+		for(Socket socket : sockets)
+		{
+			socket.close();
+		}
+		broker.stop();
+	}
+	
+	@Test(timeout = 30000)
+	public void relaysToTheOtherNodesOnly() throws Exception
+	{
+		Inbox first = new Inbox();
+		Inbox second = new Inbox();
+		TcpMessageBus firstNode = start("first", 64, first);
+		start("second", 64, second);
+		connect(firstNode, second);
+		
+		firstNode.publish(BusMessage.chat("party", "Alice", "Alice", "hello"));
+		firstNode.publish(BusMessage.role("party", "Bob", "Bob", PartyRole.LEADER));
+		
+		BusMessage chat = second.next("hello");
+		assertEquals(BusMessage.Type.CHAT, chat.type);
+		assertEquals("party", chat.partyName);
+		assertEquals("Alice", chat.playerName);
+		
+		BusMessage role = second.next();
+		assertEquals(BusMessage.Type.ROLE, role.type);
+		assertEquals("Bob", role.playerId);
+		assertEquals(PartyRole.LEADER, role.role);
+		
+		assertNull(first.poll(200));
+	}
+	
+	@Test(timeout = 30000)
+	public void splitsBatchesLargerThanAFrame() throws Exception
+	{
+		Inbox inbox = new Inbox();
+		start("receiver", 64, inbox);
+		TcpMessageBus probe = start("probe", 64, new Inbox());
+		connect(probe, inbox);
+		
+		//everything is queued before the node connects, so it goes out as one batch of 200 * 60 KB
+		TcpMessageBus sender = new TcpMessageBus(LOGGER, "127.0.0.1", broker.getPort(), "sender", 1000, 1000);
+		String text = text(60000);
+		for(int i = 0; i < 200; i++)
+		{
+			sender.publish(BusMessage.system("party", i + text));
+		}
+		sender.start(new Inbox());
+		nodes.add(sender);
+		
+		for(int i = 0; i < 200; i++)
+		{
+			BusMessage message = inbox.next();
+			assertEquals(i + text, message.text);
+		}
+		assertEquals(0, sender.getDropped());
+	}
+	
+	@Test(timeout = 60000)
+	public void slowNodeDoesNotHoldUpTheOthers() throws Exception
+	{
+		Inbox inbox = new Inbox();
+		TcpMessageBus sender = start("sender", 64, new Inbox());
+		start("receiver", 64, inbox);
+		connect(sender, inbox);
+		
+		//connects like a node but never reads, so its socket buffers fill up
+		Socket slow = new Socket("127.0.0.1", broker.getPort());
+		sockets.add(slow);
+		Thread.sleep(200);
+		
+		String text = text(60000);
+		for(int i = 0; i < 2000; i++)
+		{
+			sender.publish(BusMessage.system("party", i + text));
+		}
+		for(int i = 0; i < 2000; i++)
+		{
+			assertEquals(i + text, inbox.next().text);
+		}
+	}
+	
+	private TcpMessageBus start(String nodeId, int batchSize, Inbox inbox) throws IOException
+	{
+		TcpMessageBus node = new TcpMessageBus(LOGGER, "127.0.0.1", broker.getPort(), nodeId, batchSize, 10000);
+		node.start(inbox);
+		nodes.add(node);
+		return node;
+	}
+	
+	//sends pings until the inbox gets one, so both nodes are connected to the broker
+	private static void connect(TcpMessageBus sender, Inbox inbox) throws InterruptedException
+	{
+		while(true)
+		{
+			sender.publish(BusMessage.system("ping", "ping"));
+			BusMessage message = inbox.poll(100);
+			if(message != null) break;
+		}
+		//pings that were still on the way
+		while(inbox.poll(200) != null);
+	}
+	
+	private static String text(int length)
+	{
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+	
+	private static class Inbox implements MessageBus.Listener
+	{
+		private final LinkedBlockingQueue<BusMessage> messages = new LinkedBlockingQueue<BusMessage>();
+		
+		public void received(List<BusMessage> batch)
+		{
+			messages.addAll(batch);
+		}
+		
+		BusMessage poll(long millis) throws InterruptedException
+		{
+			return messages.poll(millis, TimeUnit.MILLISECONDS);
+		}
+		
+		BusMessage next() throws InterruptedException
+		{
+			BusMessage message = messages.poll(10, TimeUnit.SECONDS);
+			assertNotNull("no message within 10 seconds", message);
+			return message;
+		}
+		
+		//skips pings that are still arriving
+		BusMessage next(String text) throws InterruptedException
+		{
+			BusMessage message = next();
+			while(!text.equals(message.text)) message = next();
+			return message;
+		}
+	}
+}
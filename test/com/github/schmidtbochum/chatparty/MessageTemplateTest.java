@@ -0,0 +1,120 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//placeholder expansion of the compiled chat formats
+public class MessageTemplateTest
+{
+	private File folder;
+	private Party party;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		party = new Party("Builders", StandInPlugin.create(folder));
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void rendersEveryPlaceholder()
+	{
+		MessageTemplate template = MessageTemplate.compile("[{PARTYNAME}|{SHORTNAME}] {DISPLAYNAME} ({NAME}): {MESSAGE}");
+		
+		assertEquals("[Builders|Bui] Sir Alex (alex): hello", template.render(party, "alex", "Sir Alex", "hello"));
+	}
+	
+	@Test
+	public void rendersTheNamesOfAnOnlineSender()
+	{
+		MessageTemplate template = MessageTemplate.compile("{DISPLAYNAME}/{NAME}: {MESSAGE}");
+		
+		assertEquals("Sir Alex/alex: hi", template.render(party, player("alex", "Sir Alex"), "hi"));
+	}
+	
+	@Test
+	public void leavesTheSenderOutOfSystemMessages()
+	{
+		MessageTemplate template = MessageTemplate.compile("<{NAME}{DISPLAYNAME}> {MESSAGE}");
+		
+		assertEquals("<> joined", template.render(party, null, "joined"));
+	}
+	
+	@Test
+	public void keepsUnknownAndUnclosedBraces()
+	{
+		MessageTemplate template = MessageTemplate.compile("{name} {OTHER} {MESSAGE");
+		
+		assertEquals("{name} {OTHER} {MESSAGE", template.render(party, "alex", "alex", "hello"));
+	}
+	
+	@Test
+	public void doesNotExpandPlaceholdersInTheMessage()
+	{
+		MessageTemplate template = MessageTemplate.compile("{NAME}: {MESSAGE}");
+		
+		assertEquals("alex: {PARTYNAME} {NAME}", template.render(party, "alex", "alex", "{PARTYNAME} {NAME}"));
+	}
+	
+	@Test
+	public void rendersAdjacentAndRepeatedPlaceholders()
+	{
+		MessageTemplate template = MessageTemplate.compile("{{SHORTNAME}}{SHORTNAME}{MESSAGE}{MESSAGE}");
+		
+		assertEquals("{Bui}Buiabab", template.render(party, "alex", "alex", "ab"));
+	}
+	
+	@Test
+	public void rendersAFormatWithoutPlaceholders()
+	{
+		assertEquals("plain", MessageTemplate.compile("plain").render(party, "alex", "alex", "hello"));
+		assertEquals("", MessageTemplate.compile("").render(party, "alex", "alex", "hello"));
+	}
+	
+	private static Player player(final String name, final String displayName)
+	{
+		return (Player) Proxy.newProxyInstance(MessageTemplateTest.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("getName")) return name;
+				if(method.getName().equals("getDisplayName")) return displayName;
+				return null;
+			}
+		});
+	}
+}
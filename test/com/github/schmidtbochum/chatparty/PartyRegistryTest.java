@@ -0,0 +1,151 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//least recently used eviction of the party cache, the parties that have to stay and the player index
+public class PartyRegistryTest
+{
+	private File folder;
+	private ChatPartyPlugin plugin;
+	private PersistenceQueue persistence;
+	private PartyRegistry registry;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		plugin = StandInPlugin.create(folder);
+		persistence = new PersistenceQueue(plugin, null);
+		registry = new PartyRegistry();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void trimDropsTheLeastRecentlyUsedParty()
+	{
+		registry.register(party("Alpha", "a"));
+		registry.register(party("Bravo", "b"));
+		registry.register(party("Charlie", "c"));
+		registry.getParty("Alpha");
+		
+		assertEquals(1, registry.trim(2, persistence));
+		assertNull(registry.getParty("Bravo"));
+		assertNull(registry.getPlayerParty("b"));
+		assertNotNull("used last", registry.getParty("Alpha"));
+		assertNotNull("registered last", registry.getParty("Charlie"));
+	}
+	
+	@Test
+	public void trimStopsOnceTheCacheFits()
+	{
+		registry.register(party("Alpha", "a"));
+		registry.register(party("Bravo", "b"));
+		
+		assertEquals(0, registry.trim(2, persistence));
+		assertEquals(2, registry.size());
+	}
+	
+	@Test
+	public void trimKeepsPartiesWithOnlineOrUnsavedMembers()
+	{
+		Party online = party("Alpha", "a");
+		online.activePlayers.add(player());
+		Party dirty = party("Bravo", "b");
+		registry.register(online);
+		registry.register(dirty);
+		registry.register(party("Charlie", "c"));
+		persistence.markParty(dirty);
+		
+		assertEquals(1, registry.trim(1, persistence));
+		assertNotNull(registry.getParty("Alpha"));
+		assertNotNull(registry.getParty("Bravo"));
+		assertNull(registry.getParty("Charlie"));
+	}
+	
+	@Test
+	public void trimMovesTheKeptPartiesBack()
+	{
+		Party online = party("Alpha", "a");
+		online.activePlayers.add(player());
+		registry.register(online);
+		registry.register(party("Bravo", "b"));
+		registry.register(party("Charlie", "c"));
+		
+		registry.trim(2, persistence);
+		//the online party went behind Charlie, so Charlie goes first once the last member left
+		online.activePlayers.clear();
+		registry.register(party("Delta", "d"));
+		assertEquals(1, registry.trim(2, persistence));
+		assertNull(registry.getParty("Charlie"));
+		assertNotNull(registry.getParty("Alpha"));
+	}
+	
+	@Test
+	public void evictDropsIdlePartiesOnly()
+	{
+		Party idle = party("Alpha", "a");
+		registry.register(idle);
+		registry.register(party("Bravo", "b"));
+		idle.lastUsed = System.currentTimeMillis() - 60000L;
+		
+		assertEquals(1, registry.evict(10, 30000L, persistence));
+		assertNull(registry.getParty("Alpha"));
+		assertNotNull(registry.getParty("Bravo"));
+	}
+	
+	private Party party(String name, String leaderId)
+	{
+		Party party = new Party(name, plugin);
+		party.setRole(leaderId, leaderId, PartyRole.LEADER);
+		return party;
+	}
+	
+	private static Player player()
+	{
+		return (Player) Proxy.newProxyInstance(PartyRegistryTest.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("equals")) return proxy == args[0];
+				if(method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,136 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+//burst, refill and release of the token buckets; the slow limiters never refill while a test runs
+public class RateLimiterTest
+{
+	@Test
+	public void allowsTheBurstThenRejects()
+	{
+		RateLimiter limiter = new RateLimiter(0.01, 3);
+		AtomicLong bucket = RateLimiter.newBucket();
+		
+		assertTrue(limiter.tryAcquire(bucket));
+		assertTrue(limiter.tryAcquire(bucket));
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+	}
+	
+	@Test
+	public void aBurstBelowOneStillAllowsOne()
+	{
+		RateLimiter limiter = new RateLimiter(0.01, 0);
+		AtomicLong bucket = RateLimiter.newBucket();
+		
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+	}
+	
+	@Test
+	public void refillsAtTheRate() throws Exception
+	{
+		RateLimiter limiter = new RateLimiter(50, 1);
+		AtomicLong bucket = RateLimiter.newBucket();
+		
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+		
+		Thread.sleep(60);
+		assertTrue(limiter.tryAcquire(bucket));
+	}
+	
+	@Test
+	public void aFullBucketDoesNotSaveUpMoreThanTheBurst() throws Exception
+	{
+		RateLimiter limiter = new RateLimiter(50, 2);
+		AtomicLong bucket = RateLimiter.newBucket();
+		
+		Thread.sleep(100);
+		assertTrue(limiter.tryAcquire(bucket));
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+	}
+	
+	@Test
+	public void releaseGivesTheTokenBack()
+	{
+		RateLimiter limiter = new RateLimiter(0.01, 2);
+		AtomicLong bucket = RateLimiter.newBucket();
+		
+		assertTrue(limiter.tryAcquire(bucket));
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+		
+		limiter.release(bucket);
+		assertTrue(limiter.tryAcquire(bucket));
+		assertFalse(limiter.tryAcquire(bucket));
+	}
+	
+	@Test
+	public void bucketsAreIndependent()
+	{
+		RateLimiter limiter = new RateLimiter(0.01, 1);
+		AtomicLong first = RateLimiter.newBucket();
+		AtomicLong second = RateLimiter.newBucket();
+		
+		assertTrue(limiter.tryAcquire(first));
+		assertFalse(limiter.tryAcquire(first));
+		assertTrue(limiter.tryAcquire(second));
+	}
+	
+	@Test
+	public void concurrentCallersNeverTakeMoreThanTheBurst() throws Exception
+	{
+		final RateLimiter limiter = new RateLimiter(0.01, 100);
+		final AtomicLong bucket = RateLimiter.newBucket();
+		final AtomicLong taken = new AtomicLong();
+		
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) 
+		{
+			threads[i] = new Thread(new Runnable() 
+			{
+				public void run() 
+				{
+					for(int j = 0; j < 1000; j++) 
+					{
+						if(limiter.tryAcquire(bucket)) taken.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads) 
+		{
+			thread.join();
+		}
+		assertEquals(100, taken.get());
+	}
+}
@@ -0,0 +1,121 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//the states an interrupted SnapshotFile.write() can leave behind
+public class SnapshotFileTest
+{
+	private File folder;
+	private File file;
+	private File tempFile;
+	private File backupFile;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		file = new File(folder, "parties.dat");
+		tempFile = new File(folder, "parties.dat.tmp");
+		backupFile = new File(folder, "parties.dat.bak");
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void writeReplacesTheFile() throws Exception
+	{
+		SnapshotFile.write(file, bytes("first"));
+		SnapshotFile.write(file, bytes("second"));
+		
+		assertEquals("second", JournalStorageTest.read(file));
+		assertFalse(tempFile.exists());
+		assertFalse(backupFile.exists());
+	}
+	
+	@Test
+	public void keepsTheFileOverAnUnfinishedTempFile() throws Exception
+	{
+		write(file, "old");
+		write(tempFile, "ne");
+		
+		assertTrue(SnapshotFile.recover(file));
+		assertEquals("old", JournalStorageTest.read(file));
+		assertFalse(tempFile.exists());
+	}
+	
+	@Test
+	public void takesTheTempFileOnceTheOldFileWasMovedAway() throws Exception
+	{
+		write(backupFile, "old");
+		write(tempFile, "new");
+		
+		assertTrue(SnapshotFile.exists(file));
+		assertTrue(SnapshotFile.recover(file));
+		assertEquals("new", JournalStorageTest.read(file));
+		assertFalse(tempFile.exists());
+		assertFalse(backupFile.exists());
+	}
+	
+	@Test
+	public void fallsBackToTheBackup() throws Exception
+	{
+		write(backupFile, "old");
+		
+		assertTrue(SnapshotFile.recover(file));
+		assertEquals("old", JournalStorageTest.read(file));
+		assertFalse(backupFile.exists());
+	}
+	
+	@Test
+	public void dropsALoneTempFile() throws Exception
+	{
+		//the first write of the file was interrupted, the temp file may be incomplete
+		write(tempFile, "ne");
+		
+		assertFalse(SnapshotFile.exists(file));
+		assertFalse(SnapshotFile.recover(file));
+		assertFalse(file.exists());
+		assertFalse(tempFile.exists());
+	}
+	
+	private static void write(File file, String data) throws Exception
+	{
+		JournalStorageTest.append(file, data);
+	}
+	
+	private static byte[] bytes(String data) throws Exception
+	{
+		return data.getBytes("UTF-8");
+	}
+}
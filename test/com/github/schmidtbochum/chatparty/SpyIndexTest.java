@@ -0,0 +1,190 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+//party names and * ? patterns of the spy subscriptions, and the watcher lists built from them
+public class SpyIndexTest
+{
+	private File folder;
+	private ChatPartyPlugin plugin;
+	private SpyIndex index;
+	private Player admin;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = StandInPlugin.createFolder();
+		plugin = StandInPlugin.create(folder);
+		index = new SpyIndex();
+		admin = player("admin");
+	}
+	
+	@After
+	public void tearDown()
+	{
+		StandInPlugin.delete(folder);
+	}
+	
+	@Test
+	public void matchesPartyNamesIgnoringCase()
+	{
+		index.toggle("admin", admin, "builders");
+		
+		assertEquals(1, watchers("Builders").length);
+		assertEquals(0, watchers("Builder").length);
+		assertEquals(0, watchers("Builders2").length);
+	}
+	
+	@Test
+	public void starMatchesAnyRun()
+	{
+		index.toggle("admin", admin, "team*");
+		
+		assertEquals(1, watchers("team").length);
+		assertEquals(1, watchers("TeamRed").length);
+		assertEquals(0, watchers("redteam").length);
+	}
+	
+	@Test
+	public void questionMarkMatchesOneCharacter()
+	{
+		index.toggle("admin", admin, "ab?d");
+		
+		assertEquals(1, watchers("abcd").length);
+		assertEquals(0, watchers("abd").length);
+		assertEquals(0, watchers("abcde").length);
+	}
+	
+	@Test
+	public void otherCharactersAreLiteral()
+	{
+		index.toggle("admin", admin, "a.b*");
+		index.toggle("admin", admin, "(xy)?");
+		
+		assertEquals(1, watchers("a.bc").length);
+		assertEquals(0, watchers("axbc").length);
+		assertEquals(1, watchers("(xy)1").length);
+		assertEquals(0, watchers("xy1").length);
+	}
+	
+	@Test
+	public void allWatchesEveryParty()
+	{
+		index.toggle("admin", admin, SpyIndex.ALL);
+		
+		assertEquals(1, watchers("Builders").length);
+		assertEquals(1, watchers("abc").length);
+	}
+	
+	@Test
+	public void togglingAgainStopsWatching()
+	{
+		assertTrue(index.toggle("admin", admin, "team*"));
+		assertEquals(1, watchers("TeamRed").length);
+		
+		assertFalse(index.toggle("admin", admin, "team*"));
+		assertEquals(0, watchers("TeamRed").length);
+		assertEquals(0, index.getSubscriptions("admin").size());
+	}
+	
+	@Test
+	public void onlyOnlineSpiesWatch()
+	{
+		Map<String, List<String>> stored = new HashMap<String, List<String>>();
+		stored.put("admin", Arrays.asList("Builders"));
+		index.load(stored);
+		assertEquals(0, watchers("Builders").length);
+		
+		index.join("admin", admin);
+		assertEquals(1, watchers("Builders").length);
+		
+		index.quit(admin);
+		assertEquals(0, watchers("Builders").length);
+		assertEquals(Arrays.asList("Builders"), index.getSubscriptions("admin"));
+	}
+	
+	@Test
+	public void listsEveryMatchingSpy()
+	{
+		Player other = player("other");
+		index.toggle("admin", admin, "build*");
+		index.toggle("other", other, "?uilders");
+		index.toggle("third", player("third"), "miners");
+		
+		List<Player> watchers = Arrays.asList(watchers("Builders"));
+		assertEquals(2, watchers.size());
+		assertTrue(watchers.contains(admin));
+		assertTrue(watchers.contains(other));
+	}
+	
+	@Test
+	public void renameMergesTheSubscriptions()
+	{
+		Map<String, List<String>> stored = new HashMap<String, List<String>>();
+		stored.put("admin", Arrays.asList("miners"));
+		stored.put("uuid", Arrays.asList("builders"));
+		index.load(stored);
+		
+		assertTrue(index.rename("admin", "uuid"));
+		assertFalse(index.rename("admin", "uuid"));
+		
+		List<String> subscriptions = index.getSubscriptions("uuid");
+		assertEquals(2, subscriptions.size());
+		assertTrue(subscriptions.contains("miners"));
+		assertTrue(subscriptions.contains("builders"));
+	}
+	
+	private Player[] watchers(String partyName)
+	{
+		return index.getWatchers(new Party(partyName, plugin));
+	}
+	
+	private static Player player(final String name)
+	{
+		return (Player) Proxy.newProxyInstance(SpyIndexTest.class.getClassLoader(), new Class<?>[] { Player.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("equals")) return proxy == args[0];
+				if(method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+				if(method.getName().equals("getName")) return name;
+				return null;
+			}
+		});
+	}
+}
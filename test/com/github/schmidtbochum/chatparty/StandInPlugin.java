@@ -0,0 +1,96 @@
+/*
+    ChatParty Plugin for Minecraft Bukkit Servers
+    Copyright (C) 2013 Felix Schmidt
+    
+    This file is part of ChatParty.
+
+    ChatParty is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ChatParty is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ChatParty.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.schmidtbochum.chatparty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+//an initialized but not enabled plugin, enough for the classes that only need its logger and settings
+//the stand-in server only answers getLogger() and getScheduler(), like the benchmark module's PluginState does it
+public class StandInPlugin
+{
+	private static final Logger LOGGER = Logger.getLogger("ChatParty test");
+	
+	public static ChatPartyPlugin create(File dataFolder) throws Exception
+	{
+		return create(dataFolder, null);
+	}
+	
+	//scheduler may be null, scheduling then fails like it does for a disabled plugin
+	public static ChatPartyPlugin create(File dataFolder, final BukkitScheduler scheduler) throws Exception
+	{
+		Server server = (Server) Proxy.newProxyInstance(StandInPlugin.class.getClassLoader(), new Class<?>[] { Server.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("getLogger")) return LOGGER;
+				if(method.getName().equals("getName")) return "ChatPartyTest";
+				if(method.getName().equals("getScheduler")) return scheduler;
+				return null;
+			}
+		});
+		
+		ChatPartyPlugin plugin = new ChatPartyPlugin();
+		InputStream description = ChatPartyPlugin.class.getClassLoader().getResourceAsStream("plugin.yml");
+		try
+		{
+			Method initialize = JavaPlugin.class.getDeclaredMethod("initialize", PluginLoader.class, Server.class, PluginDescriptionFile.class, File.class, File.class, ClassLoader.class);
+			initialize.setAccessible(true);
+			initialize.invoke(plugin, null, server, new PluginDescriptionFile(description), dataFolder, new File(dataFolder, "ChatParty.jar"), ChatPartyPlugin.class.getClassLoader());
+		}
+		finally
+		{
+			description.close();
+		}
+		return plugin;
+	}
+	
+	public static File createFolder() throws IOException
+	{
+		File folder = File.createTempFile("chatparty", "");
+		folder.delete();
+		folder.mkdirs();
+		return folder;
+	}
+	
+	public static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null) 
+		{
+			for(File child : children) 
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}